@@ -0,0 +1,386 @@
+package org.perl6.nqp.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+import org.perl6.nqp.runtime.GlobalContext;
+import org.perl6.nqp.runtime.Ops;
+import org.perl6.nqp.runtime.ThreadContext;
+import org.perl6.nqp.sixmodel.STable;
+import org.perl6.nqp.sixmodel.SerializationContext;
+import org.perl6.nqp.sixmodel.SixModelObject;
+import org.perl6.nqp.sixmodel.reprs.NFA;
+import org.perl6.nqp.sixmodel.reprs.NFACache;
+import org.perl6.nqp.sixmodel.reprs.NFAInstance;
+import org.perl6.nqp.sixmodel.reprs.NFAStateInfo;
+import org.perl6.nqp.sixmodel.reprs.P6OpaqueBaseInstance;
+import org.perl6.nqp.sixmodel.reprs.P6OpaqueREPRData;
+import org.perl6.nqp.sixmodel.reprs.VMArrayInstance;
+import org.perl6.nqp.sixmodel.reprs.VMHashInstance;
+
+/**
+ * Throughput benchmarks for the regex ops: nfarunproto, nfarunalt,
+ * iscclass, findcclass and findnotcclass. The NFAs are the real ones of the
+ * regexes in the bytecode files we load (NQPP6QRegex.jar by default); the
+ * targets are source files. Each benchmark runs a number of timed warmup
+ * iterations, then a number of measured ones, and reports the mean number of
+ * operations per second with its spread over the measured iterations.
+ *
+ *   make j-bench BENCH_OPTS="-b nfarun -i 20"
+ *   java ... org.perl6.nqp.bench.RegexBench [options] [source files]
+ *
+ * Options are -lib FILE (bytecode file to take NFAs from; may be repeated),
+ * -wi N (warmup iterations), -i N (measured iterations), -t MS (time per
+ * iteration), -step N (run the NFAs at every Nth offset of the targets) and
+ * -b NAME (only run benchmarks whose name contains NAME; may be repeated).
+ */
+public class RegexBench {
+    private static final String[] CCLASS_NAMES = {
+        "UPPERCASE", "LOWERCASE", "ALPHABETIC", "NUMERIC", "HEXADECIMAL",
+        "WHITESPACE", "PRINTING", "BLANK", "CONTROL", "PUNCTUATION",
+        "ALPHANUMERIC", "NEWLINE", "WORD", "ANY"
+    };
+    private static final long[] CCLASSES = {
+        1, 2, 4, 8, 16, 32, 64, 256, 512, 1024, 2048, 4096, 8192, 65535
+    };
+
+    private int warmupIterations = 5;
+    private int iterations = 10;
+    private long iterationMillis = 1000;
+    private int step = 7;
+    private List<String> libs = new ArrayList<String>();
+    private List<String> sources = new ArrayList<String>();
+    private List<String> only = new ArrayList<String>();
+
+    private ThreadContext tc;
+    private List<NFAInstance> nfas = new ArrayList<NFAInstance>();
+    private List<String> targets = new ArrayList<String>();
+
+    /* Results are folded into this, so the JIT can't drop the work. */
+    private long sink;
+
+    /* A benchmark; each call of run is one operation per offset it tries,
+     * and returns how many operations it did. */
+    private static abstract class Workload {
+        final String name;
+
+        Workload(String name) {
+            this.name = name;
+        }
+
+        abstract long run();
+    }
+
+    public static void main(String[] args) throws Exception {
+        RegexBench bench = new RegexBench();
+        bench.parseArgs(args);
+        bench.setUp();
+        bench.runAll();
+    }
+
+    private void parseArgs(String[] args) {
+        int i = 0;
+        while (i < args.length) {
+            String arg = args[i];
+            if (arg.startsWith("-") && i + 1 >= args.length)
+                usage("missing value for " + arg);
+            if (arg.equals("-lib"))
+                libs.add(args[i + 1]);
+            else if (arg.equals("-wi"))
+                warmupIterations = Integer.parseInt(args[i + 1]);
+            else if (arg.equals("-i"))
+                iterations = Integer.parseInt(args[i + 1]);
+            else if (arg.equals("-t"))
+                iterationMillis = Long.parseLong(args[i + 1]);
+            else if (arg.equals("-step"))
+                step = Integer.parseInt(args[i + 1]);
+            else if (arg.equals("-b"))
+                only.add(args[i + 1]);
+            else if (arg.startsWith("-"))
+                usage("unknown option " + arg);
+            else {
+                sources.add(arg);
+                i++;
+                continue;
+            }
+            i += 2;
+        }
+        if (libs.isEmpty())
+            libs.add("NQPP6QRegex.jar");
+        if (sources.isEmpty())
+            usage("no source files to use as targets");
+        if (iterations < 1 || step < 1)
+            usage("-i and -step must be at least 1");
+    }
+
+    private static void usage(String why) {
+        System.err.println("RegexBench: " + why);
+        System.err.println("usage: RegexBench [-lib FILE]... [-wi N] [-i N] [-t MS] [-step N] [-b NAME]... SOURCE...");
+        System.exit(1);
+    }
+
+    /* Loads the bytecode files and builds NFAs from the state lists saved
+     * in their regexes, then reads the targets. */
+    private void setUp() throws IOException {
+        GlobalContext gc = new GlobalContext();
+        tc = gc.mainThread;
+        for (String lib : libs)
+            Ops.loadbytecode(lib, tc);
+
+        SixModelObject nfaType = Ops.newtype(gc.KnowHOW, "NFA", tc);
+        for (SerializationContext sc : gc.scs.values()) {
+            for (int i = 0; i < sc.objectCount(); i++) {
+                SixModelObject obj = sc.getObject(i);
+                if (obj instanceof P6OpaqueBaseInstance)
+                    collectNFAs(obj, nfaType);
+            }
+        }
+        if (nfas.isEmpty())
+            throw new RuntimeException("No regex NFAs found in " + libs);
+
+        for (String source : sources)
+            targets.add(new String(Files.readAllBytes(new File(source).toPath()), StandardCharsets.UTF_8));
+
+        System.out.printf(Locale.ROOT, "%d NFAs from %s; %d targets, %d chars%n",
+            nfas.size(), libs, targets.size(), totalChars());
+    }
+
+    /* Regex code objects keep the NFA for the regex overall in $!nfa, and
+     * those of each of its alternations' branches in %!alt_nfas. */
+    private void collectNFAs(SixModelObject obj, SixModelObject nfaType) {
+        P6OpaqueREPRData data = (P6OpaqueREPRData)obj.st.REPRData;
+        if (data == null || data.nameToHintMap == null)
+            return;
+        for (int i = 0; i < data.classHandles.length; i++) {
+            HashMap<String, Integer> names = data.nameToHintMap[i];
+            if (names == null || !names.containsKey("$!nfa") || !names.containsKey("%!alt_nfas"))
+                continue;
+            SixModelObject handle = data.classHandles[i];
+            List<NFAInstance> regex = new ArrayList<NFAInstance>();
+            addSaved(regex, obj.get_attribute_boxed(tc, handle, "$!nfa", STable.NO_HINT), nfaType);
+            if (!regex.isEmpty())
+                nfas.add(merge(regex, nfaType));
+            SixModelObject alts = obj.get_attribute_boxed(tc, handle, "%!alt_nfas", STable.NO_HINT);
+            if (alts instanceof VMHashInstance) {
+                for (SixModelObject saved : ((VMHashInstance)alts).storage.values()) {
+                    if (!(saved instanceof VMArrayInstance))
+                        continue;
+                    List<NFAInstance> branches = new ArrayList<NFAInstance>();
+                    long n = saved.elems(tc);
+                    for (long j = 0; j < n; j++)
+                        addSaved(branches, saved.at_pos_boxed(tc, j), nfaType);
+                    if (!branches.isEmpty())
+                        nfas.add(merge(branches, nfaType));
+                }
+            }
+        }
+    }
+
+    private void addSaved(List<NFAInstance> to, SixModelObject states, SixModelObject nfaType) {
+        if (states instanceof VMArrayInstance && states.elems(tc) > 1)
+            to.add((NFAInstance)Ops.nfafromstatelist(states, nfaType, tc));
+    }
+
+    /* A saved NFA goes to state 0 where it's done, so can't be run as it
+     * is. Do what the cursor does with an alternation's branches: start with
+     * an epsilon edge to each of them, and send each to its own fate. */
+    private NFAInstance merge(List<NFAInstance> branches, SixModelObject nfaType) {
+        int numStates = 1;
+        for (NFAInstance branch : branches)
+            numStates += branch.numStates + 1;
+
+        NFAInstance nfa = (NFAInstance)nfaType.st.REPR.allocate(tc, nfaType.st);
+        nfa.fates = branches.get(0).fates;
+        nfa.numStates = numStates;
+        nfa.states = new NFAStateInfo[numStates][];
+        nfa.states[0] = new NFAStateInfo[branches.size()];
+
+        int offset = 1;
+        for (int b = 0; b < branches.size(); b++) {
+            NFAInstance branch = branches.get(b);
+            int fateState = offset + branch.numStates + 1;
+            nfa.states[0][b] = edge(NFA.EDGE_EPSILON, 0, offset + 1);
+            for (int i = 0; i < branch.numStates; i++) {
+                NFAStateInfo[] edges = branch.states[i];
+                NFAStateInfo[] copied = new NFAStateInfo[edges.length];
+                for (int j = 0; j < edges.length; j++) {
+                    NFAStateInfo edge = edges[j];
+                    NFAStateInfo copy = edge(edge.act, edge.arg_i, edge.to);
+                    copy.arg_s = edge.arg_s;
+                    copy.arg_lc = edge.arg_lc;
+                    copy.arg_uc = edge.arg_uc;
+                    if (edge.to != 0)
+                        copy.to = edge.to + offset;
+                    else if (edge.act != NFA.EDGE_FATE)
+                        copy.to = fateState;
+                    copied[j] = copy;
+                }
+                nfa.states[offset + i] = copied;
+            }
+            nfa.states[fateState - 1] = new NFAStateInfo[] { edge(NFA.EDGE_FATE, b, 0) };
+            offset = fateState;
+        }
+        NFACache.intern(nfa);
+        return nfa;
+    }
+
+    private static NFAStateInfo edge(int act, int arg, int to) {
+        NFAStateInfo edge = new NFAStateInfo();
+        edge.act = act;
+        edge.arg_i = arg;
+        edge.to = to;
+        return edge;
+    }
+
+    private long totalChars() {
+        long chars = 0;
+        for (String target : targets)
+            chars += target.length();
+        return chars;
+    }
+
+    private void runAll() {
+        List<Workload> workloads = new ArrayList<Workload>();
+        workloads.add(new Workload("nfarunproto") {
+            long run() {
+                long ops = 0;
+                for (String target : targets) {
+                    for (NFAInstance nfa : nfas) {
+                        for (int pos = 0; pos < target.length(); pos += step) {
+                            sink += Ops.nfarunproto(nfa, target, pos, tc).elems(tc);
+                            ops++;
+                        }
+                    }
+                }
+                return ops;
+            }
+        });
+        workloads.add(new Workload("nfarunalt") {
+            final SixModelObject bstack = newIntArray();
+            final SixModelObject marks = newIntArray();
+
+            long run() {
+                long ops = 0;
+                for (String target : targets) {
+                    for (NFAInstance nfa : nfas) {
+                        for (int pos = 0; pos < target.length(); pos += step) {
+                            bstack.set_elems(tc, 0);
+                            Ops.nfarunalt(nfa, target, pos, bstack, null, marks, tc);
+                            sink += bstack.elems(tc);
+                            ops++;
+                        }
+                    }
+                }
+                return ops;
+            }
+        });
+        for (int c = 0; c < CCLASSES.length; c++) {
+            final long cclass = CCLASSES[c];
+            String suffix = "(" + CCLASS_NAMES[c] + ")";
+            workloads.add(new Workload("iscclass" + suffix) {
+                long run() {
+                    long ops = 0;
+                    for (String target : targets) {
+                        int chars = target.length();
+                        for (int pos = 0; pos < chars; pos++)
+                            sink += Ops.iscclass(cclass, target, pos);
+                        ops += chars;
+                    }
+                    return ops;
+                }
+            });
+            workloads.add(new Workload("findcclass" + suffix) {
+                long run() {
+                    long ops = 0;
+                    for (String target : targets) {
+                        int chars = target.length();
+                        for (long pos = 0; pos < chars; pos++) {
+                            pos = Ops.findcclass(cclass, target, pos, chars);
+                            sink += pos;
+                            ops++;
+                        }
+                    }
+                    return ops;
+                }
+            });
+            workloads.add(new Workload("findnotcclass" + suffix) {
+                long run() {
+                    long ops = 0;
+                    for (String target : targets) {
+                        int chars = target.length();
+                        for (long pos = 0; pos < chars; pos++) {
+                            pos = Ops.findnotcclass(cclass, target, pos, chars);
+                            sink += pos;
+                            ops++;
+                        }
+                    }
+                    return ops;
+                }
+            });
+        }
+
+        System.out.printf(Locale.ROOT, "%-30s %16s %14s %16s %16s%n",
+            "benchmark", "ops/s", "+/- (stddev)", "min", "max");
+        for (Workload workload : workloads) {
+            if (selected(workload.name))
+                measure(workload);
+        }
+        System.out.println("(" + sink + ")");
+    }
+
+    private boolean selected(String name) {
+        if (only.isEmpty())
+            return true;
+        for (String want : only)
+            if (name.contains(want))
+                return true;
+        return false;
+    }
+
+    private void measure(Workload workload) {
+        for (int i = 0; i < warmupIterations; i++)
+            iteration(workload);
+        double[] scores = new double[iterations];
+        for (int i = 0; i < iterations; i++)
+            scores[i] = iteration(workload);
+
+        double sum = 0, min = Double.MAX_VALUE, max = 0;
+        for (double score : scores) {
+            sum += score;
+            min = Math.min(min, score);
+            max = Math.max(max, score);
+        }
+        double mean = sum / iterations;
+        double var = 0;
+        for (double score : scores)
+            var += (score - mean) * (score - mean);
+        double stddev = iterations > 1 ? Math.sqrt(var / (iterations - 1)) : 0;
+        System.out.printf(Locale.ROOT, "%-30s %16.1f %14.1f %16.1f %16.1f%n",
+            workload.name, mean, stddev, min, max);
+    }
+
+    /* Runs the workload over and over for the iteration time, returning
+     * the operations per second. */
+    private double iteration(Workload workload) {
+        long ops = 0;
+        long start = System.nanoTime();
+        long deadline = start + iterationMillis * 1000000;
+        long now;
+        do {
+            ops += workload.run();
+            now = System.nanoTime();
+        } while (now < deadline);
+        return ops / ((now - start) / 1e9);
+    }
+
+    private SixModelObject newIntArray() {
+        SixModelObject type = tc.gc.BOOTIntArray;
+        return type.st.REPR.allocate(tc, type.st);
+    }
+}
@@ -186,6 +186,7 @@ public class JASTCompiler {
             if (method.hasExitHandler) av.visit("hasExitHandler", method.hasExitHandler);
             if (method.argsExpectation > 0) av.visit("argsExpectation", method.argsExpectation);
             if (method.isThunk) av.visit("isThunk", method.isThunk);
+            if (method.recyclable) av.visit("recyclable", method.recyclable);
             av.visitEnd();
         }
 
@@ -1,5 +1,10 @@
 package org.perl6.nqp.runtime;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.perl6.nqp.sixmodel.*;
 
 /* Argument expectations are used to indicate what, exactly, a block we are
@@ -138,4 +143,133 @@ public class ArgsExpectation {
             ExceptionHandling.dieInternal(tc, "Unknown Argument Expectation in invoke");
         }
     }
+
+    private static final MethodHandle boxIntArg;
+    private static final MethodHandle boxNumArg;
+    private static final MethodHandle boxStrArg;
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            boxIntArg = l.findStatic(ArgsExpectation.class, "boxIntArg", MethodType.methodType(
+                SixModelObject.class, long.class, StaticCodeInfo.class, ThreadContext.class));
+            boxNumArg = l.findStatic(ArgsExpectation.class, "boxNumArg", MethodType.methodType(
+                SixModelObject.class, double.class, StaticCodeInfo.class, ThreadContext.class));
+            boxStrArg = l.findStatic(ArgsExpectation.class, "boxStrArg", MethodType.methodType(
+                SixModelObject.class, String.class, StaticCodeInfo.class, ThreadContext.class));
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* Gets a binder for calling the code from call sites with the given
+     * descriptor: a method handle taking the ThreadContext, the CodeRef and
+     * then the arguments as the call site passes them, which invokes the code
+     * directly, boxing any natives the code wants as objects. This saves the
+     * args array (unless the code uses the binder) and the dispatch on the
+     * expectation in invokeByExpectation. Returns null if there's flattening
+     * or the arguments don't fit what the code expects; invokeByExpectation
+     * deals with those. Binders are cached on the code's static info. */
+    public static MethodHandle binderFor(StaticCodeInfo sci, CallSiteDescriptor csd) {
+        if (csd.hasFlattening)
+            return null;
+        ConcurrentHashMap<CallSiteDescriptor, MethodHandle> binders = sci.binders;
+        if (binders == null) {
+            synchronized (sci) {
+                if (sci.binders == null)
+                    sci.binders = new ConcurrentHashMap<CallSiteDescriptor, MethodHandle>();
+                binders = sci.binders;
+            }
+        }
+        MethodHandle binder = binders.get(csd);
+        if (binder == null) {
+            binder = makeBinder(sci, csd);
+            if (binder == null)
+                return null;
+            binders.put(csd, binder);
+        }
+        return binder;
+    }
+
+    private static MethodHandle makeBinder(StaticCodeInfo sci, CallSiteDescriptor csd) {
+        byte[] argFlags = csd.argFlags;
+        Class<?>[] argTypes = new Class<?>[argFlags.length];
+        for (int i = 0; i < argFlags.length; i++)
+            argTypes[i] = argType(argFlags[i]);
+        MethodType type = MethodType.methodType(void.class, ThreadContext.class, CodeRef.class)
+            .appendParameterTypes(argTypes);
+        MethodHandle binder = MethodHandles.insertArguments(sci.mh, 2, csd);
+
+        switch (sci.argsExpectation) {
+        case USE_BINDER:
+            /* Still needs the args array, but we can collect it here. */
+            return binder
+                .asCollector(Object[].class, argFlags.length)
+                .asType(type);
+        case NO_ARGS:
+            return argFlags.length == 0 ? binder : null;
+        case OBJ:
+        case OBJ_OBJ:
+            int wanted = sci.argsExpectation == OBJ ? 1 : 2;
+            if (argFlags.length != wanted)
+                return null;
+            for (int i = 0; i < argFlags.length; i++) {
+                MethodHandle box;
+                switch (argFlags[i]) {
+                case CallSiteDescriptor.ARG_OBJ:
+                    continue;
+                case CallSiteDescriptor.ARG_INT:
+                    box = boxIntArg;
+                    break;
+                case CallSiteDescriptor.ARG_NUM:
+                    box = boxNumArg;
+                    break;
+                case CallSiteDescriptor.ARG_STR:
+                    box = boxStrArg;
+                    break;
+                default:
+                    return null;
+                }
+
+                /* Box the argument in place, feeding the box the ThreadContext
+                 * we're passed too. */
+                int pos = 2 + i;
+                binder = MethodHandles.collectArguments(binder, pos,
+                    MethodHandles.insertArguments(box, 1, sci));
+                MethodType boxed = binder.type().dropParameterTypes(pos + 1, pos + 2);
+                int[] reorder = new int[binder.type().parameterCount()];
+                for (int j = 0; j < reorder.length; j++)
+                    reorder[j] = j <= pos ? j : j == pos + 1 ? 0 : j - 1;
+                binder = MethodHandles.permuteArguments(binder, boxed, reorder);
+            }
+            return binder.asType(type);
+        default:
+            return null;
+        }
+    }
+
+    private static Class<?> argType(byte flag) {
+        switch (flag & (CallSiteDescriptor.ARG_INT | CallSiteDescriptor.ARG_NUM | CallSiteDescriptor.ARG_STR)) {
+        case CallSiteDescriptor.ARG_INT:
+            return long.class;
+        case CallSiteDescriptor.ARG_NUM:
+            return double.class;
+        case CallSiteDescriptor.ARG_STR:
+            return String.class;
+        default:
+            return SixModelObject.class;
+        }
+    }
+
+    private static SixModelObject boxIntArg(long value, StaticCodeInfo sci, ThreadContext tc) {
+        return Ops.box_i(value, sci.compUnit.hllConfig.intBoxType, tc);
+    }
+
+    private static SixModelObject boxNumArg(double value, StaticCodeInfo sci, ThreadContext tc) {
+        return Ops.box_n(value, sci.compUnit.hllConfig.numBoxType, tc);
+    }
+
+    private static SixModelObject boxStrArg(String value, StaticCodeInfo sci, ThreadContext tc) {
+        return Ops.box_s(value, sci.compUnit.hllConfig.strBoxType, tc);
+    }
 }
@@ -1,6 +1,6 @@
 package org.perl6.nqp.runtime;
 
-import java.util.HashMap;
+import java.util.Arrays;
 
 import org.perl6.nqp.sixmodel.InvocationSpec;
 import org.perl6.nqp.sixmodel.SerializationContext;
@@ -64,9 +64,21 @@ public class CallFrame implements Cloneable {
     public long curHandler = 0;
 
     /**
-     * Current working copy of the named arguments data.
+     * Which named arguments have been used, by their number in the callsite
+     * descriptor; the first 64 are bits of namedUsed, any more are flagged in
+     * namedUsedMore.
      */
-    public HashMap<String, Integer> workingNameMap;
+    public long namedUsed;
+    public boolean[] namedUsedMore;
+
+    /**
+     * The dynamic variable last looked up starting from this frame, and the
+     * frame and index it was found at. Only good as long as the caller chain
+     * from here to there doesn't change; see Ops.getlexdyn.
+     */
+    public String dynlexName;
+    public CallFrame dynlexFrame;
+    public int dynlexIdx;
 
     /**
      * Serialization context this frame is associated with, if any.
@@ -97,6 +109,18 @@ public class CallFrame implements Cloneable {
      */
     public Object[] args;
 
+    /**
+     * Has something taken a reference to this frame that may outlive the
+     * call, such as a context, an exception or a continuation? If so, so has
+     * everything on its caller and outer chains; see escape.
+     */
+    public boolean escaped;
+
+    /**
+     * Number of left frames each thread keeps for reuse.
+     */
+    public static final int POOL_SIZE = Integer.getInteger("nqp.frames.pool", 64);
+
     // Empty constructor for things that want to fake one up.
     public CallFrame()
     {
@@ -104,6 +128,23 @@ public class CallFrame implements Cloneable {
 
     // Normal constructor.
     public CallFrame(ThreadContext tc, CodeRef cr) {
+        init(tc, cr);
+    }
+
+    // Gets a frame for code that is recyclable, reusing one left earlier
+    // if there is one.
+    public static CallFrame obtain(ThreadContext tc, CodeRef cr) {
+        int n = tc.framePoolSize;
+        if (n == 0)
+            return new CallFrame(tc, cr);
+        CallFrame cf = tc.framePool[--n];
+        tc.framePool[n] = null;
+        tc.framePoolSize = n;
+        cf.init(tc, cr);
+        return cf;
+    }
+
+    private void init(ThreadContext tc, CodeRef cr) {
         this.tc = tc;
         this.codeRef = cr;
         this.caller = tc.curFrame;
@@ -133,10 +174,12 @@ public class CallFrame implements Cloneable {
             }
         }
 
-        // Set up lexical storage.
+        // Set up lexical storage, reusing any arrays of the right size that
+        // a recycled frame has.
         if (sci.oLexicalNames != null) {
             int numoLex = sci.oLexStatic.length;
-            this.oLex = new SixModelObject[numoLex];
+            if (this.oLex == null || this.oLex.length != numoLex)
+                this.oLex = new SixModelObject[numoLex];
             for (int i = 0; i < numoLex; i++) {
                 switch (sci.oLexStaticFlags[i]) {
                 case 0:
@@ -155,15 +198,42 @@ public class CallFrame implements Cloneable {
                     else
                         this.oLex[i] = cr.oLexState[i];
                     break;
+                default:
+                    this.oLex[i] = null;
+                    break;
                 }
             }
         }
-        if (sci.iLexicalNames != null)
-            this.iLex = new long[sci.iLexicalNames.length];
-        if (sci.nLexicalNames != null)
-            this.nLex = new double[sci.nLexicalNames.length];
-        if (sci.sLexicalNames != null)
-            this.sLex = new String[sci.sLexicalNames.length];
+        else {
+            this.oLex = null;
+        }
+        if (sci.iLexicalNames != null) {
+            if (this.iLex == null || this.iLex.length != sci.iLexicalNames.length)
+                this.iLex = new long[sci.iLexicalNames.length];
+            else
+                Arrays.fill(this.iLex, 0);
+        }
+        else {
+            this.iLex = null;
+        }
+        if (sci.nLexicalNames != null) {
+            if (this.nLex == null || this.nLex.length != sci.nLexicalNames.length)
+                this.nLex = new double[sci.nLexicalNames.length];
+            else
+                Arrays.fill(this.nLex, 0.0);
+        }
+        else {
+            this.nLex = null;
+        }
+        if (sci.sLexicalNames != null) {
+            if (this.sLex == null || this.sLex.length != sci.sLexicalNames.length)
+                this.sLex = new String[sci.sLexicalNames.length];
+            else
+                Arrays.fill(this.sLex, null);
+        }
+        else {
+            this.sLex = null;
+        }
 
         // Current call frame becomes this new one.
         tc.curFrame = this;
@@ -226,7 +296,12 @@ public class CallFrame implements Cloneable {
         new byte[] { CallSiteDescriptor.ARG_OBJ, CallSiteDescriptor.ARG_OBJ }, null);
     public void leave() {
         StaticCodeInfo sci = this.codeRef.staticInfo;
-        sci.priorInvocation = this;
+        if (!sci.recyclable) {
+            // Inner code may find this frame as its outer through the prior
+            // invocation, and from there its callers, so it escapes.
+            sci.priorInvocation = this;
+            this.escape();
+        }
         if (sci.hasExitHandler) {
             UnwindException origUnwinder = tc.unwinder;
             tc.unwinder = new UnwindException();
@@ -236,11 +311,54 @@ public class CallFrame implements Cloneable {
             tc.unwinder = origUnwinder;
         }
         this.tc.curFrame = this.caller;
+        if (sci.recyclable && !this.escaped)
+            this.recycle();
+    }
+
+    // Marks this frame as escaped, along with everything reachable from it.
+    // As that's already true of any escaped frame, we can stop at those.
+    public void escape() {
+        CallFrame cf = this;
+        while (cf != null && !cf.escaped) {
+            cf.escaped = true;
+            if (cf.outer != null && !cf.outer.escaped)
+                cf.outer.escape();
+            cf = cf.caller;
+        }
+    }
+
+    // Puts a left frame in its thread's pool, if there's room, dropping
+    // anything it refers to.
+    private void recycle() {
+        ThreadContext tc = this.tc;
+        if (tc.framePoolSize == POOL_SIZE)
+            return;
+        this.outer = null;
+        this.caller = null;
+        this.oRet = null;
+        this.iRet = 0;
+        this.nRet = 0.0;
+        this.sRet = null;
+        this.retType = RET_OBJ;
+        this.curHandler = 0;
+        this.namedUsed = 0;
+        this.namedUsedMore = null;
+        this.dynlexName = null;
+        this.dynlexFrame = null;
+        this.sc = null;
+        this.stateInit = false;
+        this.exitAfterUnwind = false;
+        this.csd = null;
+        this.args = null;
+        tc.framePool[tc.framePoolSize++] = this;
     }
 
     CallFrame cloneContinuation() {
         try {
-            return (CallFrame)clone();
+            CallFrame clone = (CallFrame)clone();
+            clone.dynlexName = null;
+            clone.dynlexFrame = null;
+            return clone;
         } catch (CloneNotSupportedException e) {
             return null;
         }
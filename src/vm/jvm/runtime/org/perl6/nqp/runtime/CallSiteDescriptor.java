@@ -30,6 +30,19 @@ public class CallSiteDescriptor {
     /* Singleton empty name map. */
     private static HashMap<String, Integer> emptyNameMap = new HashMap<String, Integer>();
 
+    /* The distinct names of the named arguments, each numbered by its index
+     * here, and the matching entries from nameMap. Frames track which named
+     * arguments they've used by these numbers. */
+    public String[] namedNames;
+    public int[] namedLookups;
+
+    /* Up to this many names, finding one scans namedNames; beyond that, we
+     * build namedIndexes. */
+    private static final int NAMED_SCAN_LIMIT = 8;
+    private HashMap<String, Integer> namedIndexes;
+    private static final String[] noNames = new String[0];
+    private static final int[] noLookups = new int[0];
+
     /* Number of normal positional arguments. */
     public int numPositionals = 0;
 
@@ -90,6 +103,51 @@ public class CallSiteDescriptor {
                 new RuntimeException("Unhandld argument flag: " + af);
             }
         }
+
+        /* Number the names, in the order the arguments were passed. If a name
+         * was passed twice, the last one wins, as it did in nameMap. */
+        int numNames = nameMap.size();
+        if (numNames == 0) {
+            namedNames = noNames;
+            namedLookups = noLookups;
+        }
+        else {
+            namedNames = new String[numNames];
+            namedLookups = new int[numNames];
+            int idx = 0;
+            for (int i = 0, nameIdx = 0; i < argFlags.length; i++) {
+                if ((argFlags[i] & (ARG_NAMED | ARG_FLAT)) != ARG_NAMED)
+                    continue;
+                String argName = names[nameIdx++];
+                Integer lookup = nameMap.get(argName);
+                if ((lookup >> 3) == i) {
+                    namedNames[idx] = argName;
+                    namedLookups[idx++] = lookup;
+                }
+            }
+            if (numNames > NAMED_SCAN_LIMIT) {
+                namedIndexes = new HashMap<String, Integer>();
+                for (int i = 0; i < numNames; i++)
+                    namedIndexes.put(namedNames[i], i);
+            }
+        }
+    }
+
+    /* Gets the number of the named argument with the given name, or -1 if
+     * there's no such named argument. */
+    public int namedIndex(String name) {
+        if (namedIndexes != null) {
+            Integer idx = namedIndexes.get(name);
+            return idx == null ? -1 : idx;
+        }
+        String[] namedNames = this.namedNames;
+        for (int i = 0; i < namedNames.length; i++)
+            if (namedNames[i] == name)
+                return i;
+        for (int i = 0; i < namedNames.length; i++)
+            if (namedNames[i].equals(name))
+                return i;
+        return -1;
     }
 
     /* Explodes any flattening parts. Creates and puts in place a new callsite
@@ -0,0 +1,180 @@
+package org.perl6.nqp.runtime;
+
+/**
+ * Tables for the character classes of iscclass, findcclass and friends. Each
+ * char gets a mask with the bits of the classes it is in; Latin-1 is done up
+ * front, and the rest of the BMP in pages of 256 chars as they're first hit.
+ */
+public class CharClassTable {
+    public static final int CCLASS_ANY          = 65535;
+    public static final int CCLASS_UPPERCASE    = 1;
+    public static final int CCLASS_LOWERCASE    = 2;
+    public static final int CCLASS_ALPHABETIC   = 4;
+    public static final int CCLASS_NUMERIC      = 8;
+    public static final int CCLASS_HEXADECIMAL  = 16;
+    public static final int CCLASS_WHITESPACE   = 32;
+    public static final int CCLASS_PRINTING     = 64;
+    public static final int CCLASS_BLANK        = 256;
+    public static final int CCLASS_CONTROL      = 512;
+    public static final int CCLASS_PUNCTUATION  = 1024;
+    public static final int CCLASS_ALPHANUMERIC = 2048;
+    public static final int CCLASS_NEWLINE      = 4096;
+    public static final int CCLASS_WORD         = 8192;
+
+    /* The classes we have tables for, and the otherwise unused bit that every
+     * char has set, which stands in for CCLASS_ANY. */
+    private static final int CCLASS_KNOWN =
+        CCLASS_UPPERCASE | CCLASS_LOWERCASE | CCLASS_ALPHABETIC | CCLASS_NUMERIC |
+        CCLASS_HEXADECIMAL | CCLASS_WHITESPACE | CCLASS_PRINTING | CCLASS_BLANK |
+        CCLASS_CONTROL | CCLASS_PUNCTUATION | CCLASS_ALPHANUMERIC | CCLASS_NEWLINE |
+        CCLASS_WORD;
+    private static final int ANY_BIT = 128;
+
+    private static final int PUNCT_TYPES =
+        (1 << Character.CONNECTOR_PUNCTUATION) | (1 << Character.DASH_PUNCTUATION) |
+        (1 << Character.END_PUNCTUATION) | (1 << Character.FINAL_QUOTE_PUNCTUATION) |
+        (1 << Character.INITIAL_QUOTE_PUNCTUATION) | (1 << Character.OTHER_PUNCTUATION) |
+        (1 << Character.START_PUNCTUATION);
+    private static final int NONPRINT_TYPES =
+        (1 << Character.CONTROL) | (1 << Character.SURROGATE) | (1 << Character.UNASSIGNED) |
+        (1 << Character.LINE_SEPARATOR) | (1 << Character.PARAGRAPH_SEPARATOR);
+
+    private static class Page {
+        final char[] masks;
+
+        Page(char[] masks) {
+            this.masks = masks;
+        }
+    }
+
+    private static final char[] latin1 = buildPage(0);
+    private static final Page[] pages = new Page[256];
+
+    /**
+     * Gets the bit to test in a char's mask for the specified class; this
+     * is 0 for anything that isn't a class, which nothing is in.
+     */
+    public static int bitFor(long cclass) {
+        if (cclass == CCLASS_ANY)
+            return ANY_BIT;
+        if ((cclass & CCLASS_KNOWN) == cclass && Long.bitCount(cclass) == 1)
+            return (int)cclass;
+        return 0;
+    }
+
+    /**
+     * Gets the mask of classes a char is in.
+     */
+    public static int classesOf(char c) {
+        if (c < 256)
+            return latin1[c];
+        Page page = pages[c >> 8];
+        if (page == null)
+            pages[c >> 8] = page = new Page(buildPage(c >> 8));
+        return page.masks[c & 0xff];
+    }
+
+    /**
+     * Checks if a char is in the class with the specified bit.
+     */
+    public static boolean isIn(int bit, char c) {
+        return (classesOf(c) & bit) != 0;
+    }
+
+    /**
+     * Checks if a char is in the specified class.
+     */
+    public static boolean matches(long cclass, char c) {
+        return (classesOf(c) & bitFor(cclass)) != 0;
+    }
+
+    /**
+     * Finds the first offset from offset up to end of the target where the
+     * char is in the class with the specified bit, or end if there is none.
+     */
+    public static long find(int bit, String target, long offset, long end) {
+        if (bit != 0) {
+            for (int pos = (int)Math.max(offset, 0); pos < end; pos++) {
+                char c = target.charAt(pos);
+                int mask = c < 256 ? latin1[c] : classesOf(c);
+                if ((mask & bit) != 0)
+                    return pos;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Finds the first offset from offset up to end of the target where the
+     * char is not in the class with the specified bit, or end if there is
+     * none. Offsets before the start of the target are in no class.
+     */
+    public static long findNot(int bit, String target, long offset, long end) {
+        if (offset >= end)
+            return end;
+        if (offset < 0 || bit == 0)
+            return offset;
+        for (int pos = (int)offset; pos < end; pos++) {
+            char c = target.charAt(pos);
+            int mask = c < 256 ? latin1[c] : classesOf(c);
+            if ((mask & bit) == 0)
+                return pos;
+        }
+        return end;
+    }
+
+    private static char[] buildPage(int page) {
+        char[] masks = new char[256];
+        for (int i = 0; i < 256; i++) {
+            char c = (char)((page << 8) | i);
+            int mask = ANY_BIT;
+            for (int cclass = 1; cclass <= CCLASS_WORD; cclass <<= 1)
+                if ((cclass & CCLASS_KNOWN) != 0 && compute(cclass, c))
+                    mask |= cclass;
+            masks[i] = (char)mask;
+        }
+        return masks;
+    }
+
+    /* Works out whether a char is in a class the slow way. */
+    private static boolean compute(int cclass, char test) {
+        switch (cclass) {
+        case CCLASS_NUMERIC:
+            return Character.isDigit(test);
+        case CCLASS_WHITESPACE:
+            if (Character.isSpaceChar(test)) return true;
+            if (test >= '\t' && test <= '\r') return true;
+            if (test == '\u0085') return true;
+            return false;
+        case CCLASS_PRINTING:
+            if (((1 << Character.getType(test)) & NONPRINT_TYPES) != 0) return false;
+            return test < '\t' || test > '\r';
+        case CCLASS_WORD:
+            return test == '_' || Character.isLetterOrDigit(test);
+        case CCLASS_NEWLINE:
+            return (Character.getType(test) == Character.LINE_SEPARATOR) ||
+                    (test == '\n' || test == '\u000b' || test == '\f' || test == '\r' ||
+                     test == '\u0085' || test == '\u2029');
+        case CCLASS_ALPHABETIC:
+            return Character.isAlphabetic(test);
+        case CCLASS_UPPERCASE:
+            return Character.isUpperCase(test);
+        case CCLASS_LOWERCASE:
+            return Character.isLowerCase(test);
+        case CCLASS_HEXADECIMAL:
+            return Character.isDigit(test) ||
+                    (test >= 'A' && test <= 'F' || test >= 'a' && test <= 'f');
+        case CCLASS_BLANK:
+            return (Character.getType(test) == Character.SPACE_SEPARATOR) ||
+                    (test == '\t');
+        case CCLASS_CONTROL:
+            return Character.isISOControl(test);
+        case CCLASS_PUNCTUATION:
+            return ((1 << Character.getType(test)) & PUNCT_TYPES) != 0;
+        case CCLASS_ALPHANUMERIC:
+            return Character.isLetterOrDigit(test);
+        default:
+            return false;
+        }
+    }
+}
@@ -17,4 +17,5 @@ public @interface CodeRefAnnotation
     boolean hasExitHandler() default false;
     short argsExpectation() default 0;
     boolean isThunk() default false;
+    boolean recyclable() default false;
 }
@@ -95,6 +95,7 @@ public abstract class CompilationUnit {
             cr.staticInfo.methodName = m.methodName;
             cr.staticInfo.hasExitHandler = ann.hasExitHandler();
             cr.staticInfo.isThunk = ann.isThunk();
+            cr.staticInfo.recyclable = ann.recyclable();
             cr.st = BOOTCodeSTable;
             codeRefList.add(cr);
 
@@ -212,6 +212,10 @@ all:
                 tc.unwinder.payload = null;
             throw tc.unwinder;
         case EX_BLOCK:
+            /* The handler gets the exception, and so the frames it came
+             * from. */
+            if (exObj != null && exObj.origin != null)
+                exObj.origin.escape();
             try {
                 tc.handlers.add(new HandlerInfo(exObj, handlerInfo));
                 if (resume != null)
@@ -2,20 +2,23 @@ package org.perl6.nqp.runtime;
 
 import java.lang.invoke.*;
 import java.lang.invoke.MethodHandles.Lookup;
+import java.util.ArrayList;
 
 import org.perl6.nqp.sixmodel.*;
+import org.perl6.nqp.sixmodel.reprs.CallCaptureInstance;
+import org.perl6.nqp.sixmodel.reprs.MultiCacheInstance;
 
 public class IndyBootstrap {
     public static CallSite wval_noa(Lookup caller, String name, MethodType type) {
         try {
             /* Look up wval resolver method. */
             MethodType resType = MethodType.methodType(SixModelObject.class,
-                    MutableCallSite.class, String.class, int.class, ThreadContext.class);
+                    SharedCallSite.class, String.class, int.class, ThreadContext.class);
             MethodHandle res = caller.findStatic(IndyBootstrap.class, "wvalResolve_noa", resType);
 
             /* Create a mutable callsite, and curry the resolver with it. */
-            MutableCallSite cs = new MutableCallSite(type);
-            cs.setTarget(MethodHandles.insertArguments(res, 0, cs));
+            SharedCallSite cs = new SharedCallSite(type);
+            cs.setResolver(MethodHandles.insertArguments(res, 0, cs));
 
             /* Produce callsite; it'll be updated with the resolved WVal upon the
              * first invocation. */
@@ -26,17 +29,18 @@ public class IndyBootstrap {
         }
     }
 
-    public static SixModelObject wvalResolve_noa(MutableCallSite cs, String sc, int idx, ThreadContext tc) {
+    public static SixModelObject wvalResolve_noa(SharedCallSite cs, String sc, int idx, ThreadContext tc) {
         /* Look up the WVal. */
         SixModelObject res = tc.gc.scs.get(sc).getObject(idx);
 
         /* Update this callsite, so that we never run the lookup again and instead
-         * just always use the resolved object. Discards incoming arguments, as
+         * just always use the resolved object (or, if shared, as long as
+         * we're in the same GlobalContext). Discards incoming arguments, as
          * they are no longer needed. */
-        if (!tc.curFrame.codeRef.staticInfo.compUnit.shared)
-            cs.setTarget(MethodHandles.dropArguments(
-                        MethodHandles.constant(SixModelObject.class, res),
-                        0, String.class, int.class, ThreadContext.class));
+        cs.link(MethodHandles.dropArguments(
+                    MethodHandles.constant(SixModelObject.class, res),
+                    0, String.class, int.class, ThreadContext.class),
+                tc, tc.curFrame.codeRef.staticInfo.compUnit.shared);
 
         /* Hand back the resulting object, for this first call. */
         return res;
@@ -46,14 +50,14 @@ public class IndyBootstrap {
         try {
             /* Look up subcall resolver method. */
             MethodType resType = MethodType.methodType(void.class,
-                    Lookup.class, MutableCallSite.class, String.class,
+                    Lookup.class, SharedCallSite.class, String.class,
                     int.class, ThreadContext.class, Object[].class);
             MethodHandle res = caller.findStatic(IndyBootstrap.class, "subcallResolve_noa", resType);
 
             /* Create a mutable callsite, and curry the resolver with it and
              * the sub name. */
-            MutableCallSite cs = new MutableCallSite(type);
-            cs.setTarget(MethodHandles
+            SharedCallSite cs = new SharedCallSite(type);
+            cs.setResolver(MethodHandles
                 .insertArguments(res, 0, caller, cs)
                 .asCollector(Object[].class, type.parameterCount() - 3)
                 .asType(type));
@@ -67,17 +71,17 @@ public class IndyBootstrap {
         }
     }
 
-    public static void subcallResolve_noa(Lookup caller, MutableCallSite cs, String name, int csIdx, ThreadContext tc, Object... args) {
+    public static void subcallResolve_noa(Lookup caller, SharedCallSite cs, String name, int csIdx, ThreadContext tc, Object... args) {
         /* Locate the thing to call. */
         SixModelObject invokee = Ops.getlex(name, tc);
         if (invokee == null)
             throw ExceptionHandling.dieInternal(tc, "Can not invoke object '" + name + "'");
 
         /* Don't update callsite in cases where it's not safe. */
-        boolean shared = tc.curFrame.codeRef.staticInfo.compUnit.shared;
+        boolean linkable = true;
         if (invokee.st != null && invokee.st.ContainerSpec != null) {
             invokee = Ops.decont(invokee, tc);
-            shared = true;
+            linkable = false;
         }
 
         /* Resolve callsite descriptor. */
@@ -106,19 +110,21 @@ public class IndyBootstrap {
 
         /* Now need to adapt to the target callsite by binding the CodeRef
          * and callsite with what they've been resolved to. Don't do it if
-         * it's a compiler stub, though. */
-        if (!cr.isCompilerStub && !shared) {
+         * it's a compiler stub, though. The invoker looks the sub up again
+         * on each call, so it's fine to link it in a shared compilation
+         * unit too. */
+        if (!cr.isCompilerStub && linkable) {
             try {
                 MethodType invType = MethodType.methodType(void.class,
                     MethodHandle.class, String.class, CallSiteDescriptor.class,
                     ThreadContext.class, Object[].class);
                 MethodHandle inv = caller.findStatic(IndyBootstrap.class, "subInvoker", invType);
-                cs.setTarget(MethodHandles
+                cs.link(MethodHandles
                     .dropArguments(
                         MethodHandles.insertArguments(inv, 0, cr.staticInfo.mh, name, csdOrig),
                         0, String.class, int.class)
                     .asVarargsCollector(Object[].class)
-                    .asType(cs.getTarget().type()));
+                    .asType(cs.type()), tc, false);
             }
             catch (Throwable t) {
                 throw ExceptionHandling.dieInternal(tc, t);
@@ -165,14 +171,14 @@ public class IndyBootstrap {
         try {
             /* Look up subcall resolver method. */
             MethodType resType = MethodType.methodType(void.class,
-                    Lookup.class, MutableCallSite.class, String.class,
+                    Lookup.class, SharedCallSite.class, String.class,
                     int.class, ThreadContext.class, Object[].class);
             MethodHandle res = caller.findStatic(IndyBootstrap.class, "subcallstaticResolve_noa", resType);
 
             /* Create a mutable callsite, and curry the resolver with it and
              * the sub name. */
-            MutableCallSite cs = new MutableCallSite(type);
-            cs.setTarget(MethodHandles
+            SharedCallSite cs = new SharedCallSite(type);
+            cs.setResolver(MethodHandles
                 .insertArguments(res, 0, caller, cs)
                 .asCollector(Object[].class, type.parameterCount() - 3)
                 .asType(type));
@@ -186,17 +192,17 @@ public class IndyBootstrap {
         }
     }
 
-    public static void subcallstaticResolve_noa(Lookup caller, MutableCallSite cs, String name, int csIdx, ThreadContext tc, Object... args) {
+    public static void subcallstaticResolve_noa(Lookup caller, SharedCallSite cs, String name, int csIdx, ThreadContext tc, Object... args) {
         /* Locate the thing to call. */
         SixModelObject invokee = Ops.getlex(name, tc);
         if (invokee == null)
             throw ExceptionHandling.dieInternal(tc, "Can not invoke object '" + name + "'");
 
         /* Don't update callsite in cases where it's not safe. */
-        boolean shared = tc.curFrame.codeRef.staticInfo.compUnit.shared;
+        boolean linkable = true;
         if (invokee.st != null && invokee.st.ContainerSpec != null) {
             invokee = Ops.decont(invokee, tc);
-            shared = true;
+            linkable = false;
         }
 
         /* Resolve callsite descriptor. */
@@ -220,60 +226,36 @@ public class IndyBootstrap {
                 cr = (CodeRef)is.InvocationHandler;
                 csd = csd.injectInvokee(tc, args, invokee);
                 args = tc.flatArgs;
-                shared = true;
+                linkable = false;
             }
         }
 
         /* Now need to adapt to the target callsite by binding the CodeRef
          * and callsite with what they've been resolved to. Don't do it if
-         * it's a compiler stub, though. */
-        if (!cr.isCompilerStub && !shared) {
+         * it's a compiler stub, though. In a shared compilation unit, the
+         * CodeRef is only good for the current GlobalContext. */
+        if (!cr.isCompilerStub && linkable) {
             try {
-                boolean updated = false;
-                switch (cr.staticInfo.argsExpectation) {
-                case ArgsExpectation.NO_ARGS:
-                    if (csd.argFlags.length == 0) {
-                        cs.setTarget(MethodHandles
-                            .dropArguments(
-                                MethodHandles.insertArguments(cr.staticInfo.mh, 1, cr, csdOrig),
-                                0, String.class, int.class)
-                            .asType(cs.getTarget().type()));
-                        updated = true;
-                    }
-                    break;
-                case ArgsExpectation.OBJ:
-                    if (csd.argFlags.length == 1 && csd.argFlags[0] == CallSiteDescriptor.ARG_OBJ) {
-                        cs.setTarget(MethodHandles
-                            .dropArguments(
-                                MethodHandles.insertArguments(cr.staticInfo.mh, 1, cr, csdOrig),
-                                0, String.class, int.class)
-                            .asType(cs.getTarget().type()));
-                        updated = true;
-                    }
-                    break;
-                case ArgsExpectation.OBJ_OBJ:
-                    if (csd.argFlags.length == 2 && csd.argFlags[0] == CallSiteDescriptor.ARG_OBJ &&
-                            csd.argFlags[1] == CallSiteDescriptor.ARG_OBJ) {
-                        cs.setTarget(MethodHandles
-                            .dropArguments(
-                                MethodHandles.insertArguments(cr.staticInfo.mh, 1, cr, csdOrig),
-                                0, String.class, int.class)
-                            .asType(cs.getTarget().type()));
-                        updated = true;
-                    }
-                    break;
+                boolean shared = tc.curFrame.codeRef.staticInfo.compUnit.shared;
+                MethodHandle binder = ArgsExpectation.binderFor(cr.staticInfo, csdOrig);
+                if (binder != null) {
+                    cs.link(MethodHandles
+                        .dropArguments(
+                            MethodHandles.insertArguments(binder, 1, cr),
+                            0, String.class, int.class)
+                        .asType(cs.type()), tc, shared);
                 }
-                if (!updated) {
+                else {
                     MethodType invType = MethodType.methodType(void.class,
                         CallSiteDescriptor.class, CodeRef.class, ThreadContext.class,
                         Object[].class);
                     MethodHandle inv = caller.findStatic(IndyBootstrap.class, "substaticInvoker", invType);
-                    cs.setTarget(MethodHandles
+                    cs.link(MethodHandles
                         .dropArguments(
                             MethodHandles.insertArguments(inv, 0, csdOrig, cr),
                             0, String.class, int.class)
                         .asVarargsCollector(Object[].class)
-                        .asType(cs.getTarget().type()));
+                        .asType(cs.type()), tc, shared);
                 }
             }
             catch (Throwable t) {
@@ -386,18 +368,60 @@ public class IndyBootstrap {
 
     public static void methcallResolve_noa(Lookup caller, MutableCallSite cs, String name, int csIdx,
             ThreadContext tc, Object... args) {
+        /* Set up a PIC, which adds each receiver type it sees as it misses.
+         * The types are specific to a GlobalContext, so this is fine in a
+         * shared compilation unit too. */
+        MethodCallPIC pic = new MethodCallPIC(cs, name);
+        pic.link();
+        pic.misses++;
+        methcallLookup_noa(pic, name, csIdx, tc, args);
+    }
+
+    public static boolean methcallGuard_noa(STable assumedST, String name, int csIdx,
+            ThreadContext tc, SixModelObject invocant) {
+        return Ops.decont(invocant, tc).st == assumedST;
+    }
+
+    public static void methcallHit_noa(MethodCallPIC pic, CallSiteDescriptor csd, CodeRef cr,
+            String name, int csIdx, ThreadContext tc, Object[] args) {
+        pic.hits++;
+        try {
+            ArgsExpectation.invokeByExpectation(tc, cr, csd, args);
+        }
+        catch (ControlException e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            ExceptionHandling.dieInternal(tc, e);
+        }
+    }
+
+    public static void methcallMiss_noa(MethodCallPIC pic, String name, int csIdx,
+            ThreadContext tc, Object[] args) {
+        pic.misses++;
+        methcallLookup_noa(pic, name, csIdx, tc, args);
+    }
+
+    public static void methcallMegamorphic_noa(MethodCallPIC pic, String name, int csIdx,
+            ThreadContext tc, Object[] args) {
+        pic.misses++;
+        methcallLookup_noa(null, name, csIdx, tc, args);
+    }
+
+    /* Looks up the method and calls it. If a PIC is passed and the method is
+     * one we can cache, adds it to the PIC. */
+    private static void methcallLookup_noa(MethodCallPIC pic, String name, int csIdx,
+            ThreadContext tc, Object[] args) {
         /* Resolve callsite descriptor. */
         CallSiteDescriptor csd = csIdx >= 0
             ? tc.curFrame.codeRef.staticInfo.compUnit.callSites[csIdx]
             : Ops.emptyCallSite;
 
-        /* Don't update callsite in cases where it's not safe. */
-        boolean shared = tc.curFrame.codeRef.staticInfo.compUnit.shared;
-
         /* Try to resolve method to a coderef. */
         SixModelObject invocant = (SixModelObject)args[0];
         SixModelObject invokee = Ops.findmethod(invocant, name, tc);
         CodeRef cr;
+        STable methodST = null;
         if (invokee instanceof CodeRef) {
             cr = (CodeRef)invokee;
         }
@@ -405,79 +429,23 @@ public class IndyBootstrap {
             InvocationSpec is = invokee.st.InvocationSpec;
             if (is == null)
                 throw ExceptionHandling.dieInternal(tc, "Can not invoke this object");
-            if (is.ClassHandle != null)
+            if (is.ClassHandle != null) {
                 cr = (CodeRef)invokee.get_attribute_boxed(tc, is.ClassHandle, is.AttrName, is.Hint);
+                methodST = invokee.st;
+            }
             else {
                 cr = (CodeRef)is.InvocationHandler;
                 csd = csd.injectInvokee(tc, args, invokee);
                 args = tc.flatArgs;
-                shared = true;
+                pic = null;
             }
         }
 
-        /* If not shared, then we'll optimize on the assumption that most
-         * method callsites are monomorphic. */
-        if (!cr.isCompilerStub && !shared) {
-            try {
-                MethodType resType = MethodType.methodType(void.class,
-                        String.class, CallSiteDescriptor.class, STable.class,
-                        CodeRef.class, ThreadContext.class, Object[].class);
-                MethodHandle res = caller.findStatic(IndyBootstrap.class,
-                    "methcallCacheMono_noa", resType);
-                cs.setTarget(MethodHandles
-                    .dropArguments(
-                        MethodHandles.insertArguments(res, 1, csd,
-                            Ops.decont(invocant, tc).st, cr),
-                        1, int.class)
-                    .asCollector(Object[].class, cs.type().parameterCount() - 3)
-                    .asType(cs.type()));
-            }
-            catch (Throwable e) {
-                ExceptionHandling.dieInternal(tc, e);
-            }
-        }
-
-        /* Make the call directly for this initial call. */
-        try {
-            ArgsExpectation.invokeByExpectation(tc, cr, csd, args);
-        }
-        catch (ControlException e) {
-            throw e;
-        }
-        catch (Throwable e) {
-            ExceptionHandling.dieInternal(tc, e);
-        }
-    }
-
-    public static void methcallCacheMono_noa(String name, CallSiteDescriptor csd,
-            STable assumedST, CodeRef assumedCR, ThreadContext tc, Object... args) {
-        /* Try to resolve method to a coderef. */
-        SixModelObject invocant = Ops.decont((SixModelObject)args[0], tc);
-        CodeRef cr;
-        if (invocant.st == assumedST) {
-            cr = assumedCR;
-        }
-        else {
-            SixModelObject invokee = Ops.findmethod(invocant, name, tc);
-
-            if (invokee instanceof CodeRef) {
-                cr = (CodeRef)invokee;
-            }
-            else {
-                InvocationSpec is = invokee.st.InvocationSpec;
-                if (is == null)
-                    throw ExceptionHandling.dieInternal(tc, "Can not invoke this object");
-                if (is.ClassHandle != null)
-                    cr = (CodeRef)invokee.get_attribute_boxed(tc, is.ClassHandle, is.AttrName, is.Hint);
-                else {
-                    cr = (CodeRef)is.InvocationHandler;
-                    csd = csd.injectInvokee(tc, args, invokee);
-                    args = tc.flatArgs;
-                }
-            }
-        }
+        /* Cache the method for this receiver type. */
+        if (pic != null && !cr.isCompilerStub)
+            pic.add(tc.gc, Ops.decont(invocant, tc).st, methodST, csd, cr);
 
-        /* Make the call directly for this initial call. */
+        /* Make the call directly for this call. */
         try {
             ArgsExpectation.invokeByExpectation(tc, cr, csd, args);
         }
@@ -551,4 +519,387 @@ public class IndyBootstrap {
             ExceptionHandling.dieInternal(tc, e);
         }
     }
+
+    public static CallSite istype_noa(Lookup caller, String name, MethodType type) {
+        try {
+            /* Look up type check method. */
+            MethodType resType = MethodType.methodType(long.class,
+                    TypeCheckSite.class, SixModelObject.class, SixModelObject.class,
+                    ThreadContext.class);
+            MethodHandle res = caller.findStatic(IndyBootstrap.class, "istypeCached_noa", resType);
+
+            /* Curry it with the site's cache; the callsite itself never needs
+             * to change. */
+            return new ConstantCallSite(MethodHandles.insertArguments(res, 0,
+                new TypeCheckSite()));
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* Holds the last type check result at an istype site, if it's one that
+     * will hold until the type check cache or mode of either type changes.
+     * Entries are immutable and just replaced, so sites can be shared by
+     * threads. */
+    public static final class TypeCheckSite {
+        TypeCheckEntry last;
+    }
+
+    static final class TypeCheckEntry {
+        final STable st;
+        final SixModelObject type;
+        final long result;
+        final SwitchPoint objSP;
+        final SwitchPoint typeSP;
+
+        TypeCheckEntry(STable st, SixModelObject type, long result,
+                SwitchPoint objSP, SwitchPoint typeSP) {
+            this.st = st;
+            this.type = type;
+            this.result = result;
+            this.objSP = objSP;
+            this.typeSP = typeSP;
+        }
+    }
+
+    public static long istypeCached_noa(TypeCheckSite site, SixModelObject obj,
+            SixModelObject type, ThreadContext tc) {
+        obj = Ops.decont(obj, tc);
+        type = Ops.decont(type, tc);
+        if (obj == null)
+            return 0;
+
+        /* See if the answer is the one we saw last time. */
+        TypeCheckEntry last = site.last;
+        if (last != null && last.st == obj.st && last.type == type &&
+                !last.objSP.hasBeenInvalidated() && !last.typeSP.hasBeenInvalidated())
+            return last.result;
+
+        /* Otherwise, do the check. If the answer came only from the type
+         * check cache, remember it. */
+        SwitchPoint objSP = obj.st.getSwitchPoint();
+        SwitchPoint typeSP = type.st.getSwitchPoint();
+        long result = Ops.istype_nodecont(obj, type, tc);
+        SixModelObject[] cache = obj.st.TypeCheckCache;
+        if (cache != null && ((type.st.ModeFlags & STable.TYPE_CHECK_CACHE_FLAG_MASK) == 0 ||
+                    obj.st.typeCheckCacheContains(cache, type)))
+            site.last = new TypeCheckEntry(obj.st, type, result, objSP, typeSP);
+        return result;
+    }
+
+    public static CallSite getlex_noa(Lookup caller, String name, MethodType type) {
+        return lexicalSite(caller, "getlexCached_noa", type, LexicalSite.OBJ);
+    }
+    public static CallSite getlex_i_noa(Lookup caller, String name, MethodType type) {
+        return lexicalSite(caller, "getlexCached_i_noa", type, LexicalSite.INT);
+    }
+    public static CallSite getlex_n_noa(Lookup caller, String name, MethodType type) {
+        return lexicalSite(caller, "getlexCached_n_noa", type, LexicalSite.NUM);
+    }
+    public static CallSite getlex_s_noa(Lookup caller, String name, MethodType type) {
+        return lexicalSite(caller, "getlexCached_s_noa", type, LexicalSite.STR);
+    }
+    public static CallSite getlexouter_noa(Lookup caller, String name, MethodType type) {
+        return lexicalSite(caller, "getlexouterCached_noa", type, LexicalSite.OBJ);
+    }
+    public static CallSite getlexcaller_noa(Lookup caller, String name, MethodType type) {
+        return lexicalSite(caller, "getlexcallerCached_noa", type, LexicalSite.OBJ);
+    }
+    public static CallSite bindlex_noa(Lookup caller, String name, MethodType type) {
+        return lexicalSite(caller, "bindlexCached_noa", type, LexicalSite.OBJ);
+    }
+    public static CallSite bindlex_i_noa(Lookup caller, String name, MethodType type) {
+        return lexicalSite(caller, "bindlexCached_i_noa", type, LexicalSite.INT);
+    }
+    public static CallSite bindlex_n_noa(Lookup caller, String name, MethodType type) {
+        return lexicalSite(caller, "bindlexCached_n_noa", type, LexicalSite.NUM);
+    }
+    public static CallSite bindlex_s_noa(Lookup caller, String name, MethodType type) {
+        return lexicalSite(caller, "bindlexCached_s_noa", type, LexicalSite.STR);
+    }
+
+    private static CallSite lexicalSite(Lookup caller, String method, MethodType type, int kind) {
+        try {
+            /* Look up the lookup method; it takes the same arguments as the
+             * site, after the site's cache. */
+            MethodHandle res = caller.findStatic(IndyBootstrap.class, method,
+                type.insertParameterTypes(0, LexicalSite.class));
+
+            /* Curry it with the site's cache. */
+            return new ConstantCallSite(MethodHandles.insertArguments(res, 0,
+                new LexicalSite(kind)));
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* Holds where a by-name lexical lookup at a site last resolved to: the
+     * static code of each frame it walked through, from the one it started
+     * at to the one declaring the lexical, and the lexical's index there.
+     * Lexical names never change, so as long as the frames walked through
+     * are of the same code the lookup can go straight to the lexical.
+     * Checking every frame on the way, rather than just the depth, keeps
+     * this right for frames whose outer was set at runtime, as in an eval.
+     * Entries are immutable and just replaced, so sites can be shared by
+     * threads. */
+    public static final class LexicalSite {
+        static final int OBJ = 0;
+        static final int INT = 1;
+        static final int NUM = 2;
+        static final int STR = 3;
+
+        final int kind;
+        LexicalEntry last;
+
+        LexicalSite(int kind) {
+            this.kind = kind;
+        }
+
+        /* Looks the lexical up from the given frame, and remembers where it
+         * was found. Returns null if it wasn't. */
+        LexicalEntry resolve(CallFrame start, String name) {
+            ArrayList<StaticCodeInfo> path = new ArrayList<StaticCodeInfo>();
+            for (CallFrame cf = start; cf != null; cf = cf.outer) {
+                StaticCodeInfo sci = cf.codeRef.staticInfo;
+                Integer found;
+                switch (kind) {
+                case INT: found = sci.iTryGetLexicalIdx(name); break;
+                case NUM: found = sci.nTryGetLexicalIdx(name); break;
+                case STR: found = sci.sTryGetLexicalIdx(name); break;
+                default:  found = sci.oTryGetLexicalIdx(name); break;
+                }
+                path.add(sci);
+                if (found != null) {
+                    LexicalEntry entry = new LexicalEntry(
+                        path.toArray(new StaticCodeInfo[path.size()]), found);
+                    last = entry;
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+
+    static final class LexicalEntry {
+        final StaticCodeInfo[] path;
+        final int idx;
+
+        LexicalEntry(StaticCodeInfo[] path, int idx) {
+            this.path = path;
+            this.idx = idx;
+        }
+
+        /* Finds the frame declaring the lexical, if the lookup from the given
+         * frame walks through frames of the same code as before; otherwise
+         * returns null. */
+        CallFrame frame(CallFrame start) {
+            CallFrame cf = start;
+            for (int i = 0; ; i++) {
+                if (cf == null || cf.codeRef.staticInfo != path[i])
+                    return null;
+                if (i == path.length - 1)
+                    return cf;
+                cf = cf.outer;
+            }
+        }
+    }
+
+    public static SixModelObject getlexCached_noa(LexicalSite site, String name, ThreadContext tc) {
+        CallFrame start = tc.curFrame;
+        LexicalEntry e = site.last;
+        CallFrame cf;
+        if (e == null || (cf = e.frame(start)) == null) {
+            if ((e = site.resolve(start, name)) == null)
+                return null;
+            cf = e.frame(start);
+        }
+        return cf.oLex[e.idx];
+    }
+    public static long getlexCached_i_noa(LexicalSite site, String name, ThreadContext tc) {
+        CallFrame start = tc.curFrame;
+        LexicalEntry e = site.last;
+        CallFrame cf;
+        if (e == null || (cf = e.frame(start)) == null) {
+            if ((e = site.resolve(start, name)) == null)
+                throw ExceptionHandling.dieInternal(tc, "Lexical '" + name + "' not found");
+            cf = e.frame(start);
+        }
+        return cf.iLex[e.idx];
+    }
+    public static double getlexCached_n_noa(LexicalSite site, String name, ThreadContext tc) {
+        CallFrame start = tc.curFrame;
+        LexicalEntry e = site.last;
+        CallFrame cf;
+        if (e == null || (cf = e.frame(start)) == null) {
+            if ((e = site.resolve(start, name)) == null)
+                throw ExceptionHandling.dieInternal(tc, "Lexical '" + name + "' not found");
+            cf = e.frame(start);
+        }
+        return cf.nLex[e.idx];
+    }
+    public static String getlexCached_s_noa(LexicalSite site, String name, ThreadContext tc) {
+        CallFrame start = tc.curFrame;
+        LexicalEntry e = site.last;
+        CallFrame cf;
+        if (e == null || (cf = e.frame(start)) == null) {
+            if ((e = site.resolve(start, name)) == null)
+                throw ExceptionHandling.dieInternal(tc, "Lexical '" + name + "' not found");
+            cf = e.frame(start);
+        }
+        return cf.sLex[e.idx];
+    }
+    public static SixModelObject getlexouterCached_noa(LexicalSite site, String name, ThreadContext tc) {
+        CallFrame start = tc.curFrame.outer;
+        LexicalEntry e = site.last;
+        CallFrame cf;
+        if (e == null || (cf = e.frame(start)) == null) {
+            if ((e = site.resolve(start, name)) == null)
+                throw ExceptionHandling.dieInternal(tc, "Lexical '" + name + "' not found");
+            cf = e.frame(start);
+        }
+        return cf.oLex[e.idx];
+    }
+    public static SixModelObject getlexcallerCached_noa(LexicalSite site, String name, ThreadContext tc) {
+        /* Only a lexical found in the outer chain of the immediate caller is
+         * cached; beyond that, the callers are too varied to be worth it. */
+        CallFrame start = tc.curFrame.caller;
+        LexicalEntry e = site.last;
+        CallFrame cf;
+        if (e == null || (cf = e.frame(start)) == null) {
+            if ((e = site.resolve(start, name)) == null)
+                return Ops.getlexcaller(name, tc);
+            cf = e.frame(start);
+        }
+        return cf.oLex[e.idx];
+    }
+
+    public static SixModelObject bindlexCached_noa(LexicalSite site, String name, SixModelObject value, ThreadContext tc) {
+        CallFrame start = tc.curFrame;
+        LexicalEntry e = site.last;
+        CallFrame cf;
+        if (e == null || (cf = e.frame(start)) == null) {
+            if ((e = site.resolve(start, name)) == null)
+                throw ExceptionHandling.dieInternal(tc, "Lexical '" + name + "' not found");
+            cf = e.frame(start);
+        }
+        return cf.oLex[e.idx] = value;
+    }
+    public static long bindlexCached_i_noa(LexicalSite site, String name, long value, ThreadContext tc) {
+        CallFrame start = tc.curFrame;
+        LexicalEntry e = site.last;
+        CallFrame cf;
+        if (e == null || (cf = e.frame(start)) == null) {
+            if ((e = site.resolve(start, name)) == null)
+                throw ExceptionHandling.dieInternal(tc, "Lexical '" + name + "' not found");
+            cf = e.frame(start);
+        }
+        return cf.iLex[e.idx] = value;
+    }
+    public static double bindlexCached_n_noa(LexicalSite site, String name, double value, ThreadContext tc) {
+        CallFrame start = tc.curFrame;
+        LexicalEntry e = site.last;
+        CallFrame cf;
+        if (e == null || (cf = e.frame(start)) == null) {
+            if ((e = site.resolve(start, name)) == null)
+                throw ExceptionHandling.dieInternal(tc, "Lexical '" + name + "' not found");
+            cf = e.frame(start);
+        }
+        return cf.nLex[e.idx] = value;
+    }
+    public static String bindlexCached_s_noa(LexicalSite site, String name, String value, ThreadContext tc) {
+        CallFrame start = tc.curFrame;
+        LexicalEntry e = site.last;
+        CallFrame cf;
+        if (e == null || (cf = e.frame(start)) == null) {
+            if ((e = site.resolve(start, name)) == null)
+                throw ExceptionHandling.dieInternal(tc, "Lexical '" + name + "' not found");
+            cf = e.frame(start);
+        }
+        return cf.sLex[e.idx] = value;
+    }
+
+    public static CallSite multicachefind_noa(Lookup caller, String name, MethodType type) {
+        try {
+            /* Look up multi-dispatch cache method. */
+            MethodType resType = MethodType.methodType(SixModelObject.class,
+                    MultiCacheSite.class, SixModelObject.class, SixModelObject.class,
+                    ThreadContext.class);
+            MethodHandle res = caller.findStatic(IndyBootstrap.class, "multicachefindCached_noa", resType);
+
+            /* Curry it with the site's cache. */
+            return new ConstantCallSite(MethodHandles.insertArguments(res, 0,
+                new MultiCacheSite()));
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* The argument types a multicachefind site has seen and the candidates
+     * they resolved to, most recent first. Entries hold until the dispatcher's
+     * cache is replaced or any of the types change. The array is replaced,
+     * never changed, so sites can be shared by threads. */
+    public static final class MultiCacheSite {
+        static final int MAX_ENTRIES = 4;
+        MultiCacheEntry[] entries = new MultiCacheEntry[0];
+    }
+
+    static final class MultiCacheEntry {
+        final MultiCacheInstance cache;
+        final MultiCacheInstance.Key key;
+        final SixModelObject result;
+        final SwitchPoint[] switchPoints;
+
+        MultiCacheEntry(MultiCacheInstance cache, MultiCacheInstance.Key key,
+                SixModelObject result, SwitchPoint[] switchPoints) {
+            this.cache = cache;
+            this.key = key;
+            this.result = result;
+            this.switchPoints = switchPoints;
+        }
+
+        boolean isValid() {
+            for (SwitchPoint sp : switchPoints)
+                if (sp.hasBeenInvalidated())
+                    return false;
+            return true;
+        }
+    }
+
+    public static SixModelObject multicachefindCached_noa(MultiCacheSite site, SixModelObject cache,
+            SixModelObject capture, ThreadContext tc) {
+        if (!(cache instanceof MultiCacheInstance))
+            return null;
+        MultiCacheInstance mc = (MultiCacheInstance)cache;
+        MultiCacheInstance.Key key = MultiCacheInstance.keyFor((CallCaptureInstance)capture, tc);
+        if (key == null)
+            return null;
+
+        /* See if it's a type tuple we've seen here before. */
+        MultiCacheEntry[] entries = site.entries;
+        for (MultiCacheEntry e : entries)
+            if (e.cache == mc && e.key.matches(key) && e.isValid())
+                return e.result;
+
+        /* If not, fall back to the dispatcher's cache, and remember what it
+         * found. Take the switch points first, so that if a type changes
+         * while we look, the entry is already invalid. */
+        SwitchPoint[] switchPoints = new SwitchPoint[key.types.length];
+        int numSPs = 0;
+        for (STable st : key.types)
+            if (st != null)
+                switchPoints[numSPs++] = st.getSwitchPoint();
+        SixModelObject result = mc.lookup(key);
+        if (result != null) {
+            int keep = Math.min(entries.length, MultiCacheSite.MAX_ENTRIES - 1);
+            MultiCacheEntry[] updated = new MultiCacheEntry[keep + 1];
+            updated[0] = new MultiCacheEntry(mc, key, result,
+                java.util.Arrays.copyOf(switchPoints, numSPs));
+            System.arraycopy(entries, 0, updated, 1, keep);
+            site.entries = updated;
+        }
+        return result;
+    }
 }
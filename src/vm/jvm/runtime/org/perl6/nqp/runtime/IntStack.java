@@ -0,0 +1,51 @@
+package org.perl6.nqp.runtime;
+
+import java.util.Arrays;
+
+/**
+ * A growable stack of unboxed ints, for hot paths that would otherwise box
+ * every element into an ArrayList&lt;Integer&gt;. The backing array is only
+ * ever grown, so a stack that is cleared and reused stops allocating once it
+ * has reached its working size.
+ */
+public class IntStack {
+    /**
+     * The elements; only the first size of them are meaningful.
+     */
+    public int[] items;
+
+    /**
+     * The number of elements on the stack.
+     */
+    public int size;
+
+    public IntStack(int capacity) {
+        this.items = new int[capacity];
+    }
+
+    public void push(int value) {
+        if (size == items.length)
+            items = Arrays.copyOf(items, size * 2 + 4);
+        items[size++] = value;
+    }
+
+    public int pop() {
+        return items[--size];
+    }
+
+    public int get(int index) {
+        return items[index];
+    }
+
+    public void set(int index, int value) {
+        items[index] = value;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
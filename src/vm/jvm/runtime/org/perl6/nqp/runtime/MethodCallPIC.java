@@ -0,0 +1,251 @@
+package org.perl6.nqp.runtime;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.perl6.nqp.sixmodel.STable;
+import org.perl6.nqp.sixmodel.SixModelObject;
+
+/**
+ * The polymorphic inline cache of a methcall_noa call site. The call site's
+ * target is a chain of guardWithTest handles, one per receiver STable seen so
+ * far, each of which calls the method resolved for that STable directly
+ * (through its binder for the call site's arguments, if it has one); the end
+ * of the chain is the miss handler, which resolves the method and adds
+ * another link. Once more than DEPTH types have been seen, the site goes
+ * megamorphic and just looks the method up on every call.
+ *
+ * Each link is also guarded by the switch point of the receiver's STable
+ * (and of the method's, if it's invoked through an invocation spec), so if
+ * the method cache or invocation spec is changed the link falls through to
+ * the miss handler, which drops it and links the new method instead.
+ *
+ * In a compilation unit shared between GlobalContexts, the types seen in one
+ * GlobalContext never turn up in another, so when a site misses in a new
+ * GlobalContext its cache is emptied rather than filled up with types that
+ * won't be seen again. A site that keeps switching between GlobalContexts
+ * goes megamorphic after SharedCallSite.MAX_RELINKS switches.
+ */
+public class MethodCallPIC {
+    /* Number of receiver types a call site will cache before it gives up
+     * and goes megamorphic. */
+    public static final int DEPTH = Integer.getInteger("nqp.pic.depth", 8);
+
+    /* If set, the hit/miss counts of every site are dumped at exit. */
+    public static final boolean STATS = System.getProperty("nqp.pic.stats") != null;
+
+    private static final MethodHandle guard;
+    private static final MethodHandle countHit;
+    private static final MethodHandle hit;
+    private static final MethodHandle miss;
+    private static final MethodHandle megamorphic;
+    static {
+        try {
+            guard = find("methcallGuard_noa", boolean.class,
+                STable.class, String.class, int.class, ThreadContext.class, SixModelObject.class);
+            countHit = MethodHandles.lookup().findStatic(MethodCallPIC.class, "countHit",
+                MethodType.methodType(void.class, MethodCallPIC.class));
+            hit = find("methcallHit_noa", void.class,
+                MethodCallPIC.class, CallSiteDescriptor.class, CodeRef.class,
+                String.class, int.class, ThreadContext.class, Object[].class);
+            miss = find("methcallMiss_noa", void.class,
+                MethodCallPIC.class, String.class, int.class, ThreadContext.class, Object[].class);
+            megamorphic = find("methcallMegamorphic_noa", void.class,
+                MethodCallPIC.class, String.class, int.class, ThreadContext.class, Object[].class);
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static MethodHandle find(String name, Class<?> ret, Class<?>... params) throws Exception {
+        return MethodHandles.lookup().findStatic(IndyBootstrap.class, name,
+            MethodType.methodType(ret, params));
+    }
+
+    private static final ConcurrentLinkedQueue<MethodCallPIC> sites = new ConcurrentLinkedQueue<MethodCallPIC>();
+    static {
+        if (STATS)
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    System.err.print(report());
+                }
+            });
+    }
+
+    /* The call site we're the cache of, and the method name it calls. */
+    private final MutableCallSite cs;
+    public final String name;
+
+    /* A receiver type we've cached a method for, and what we assumed. */
+    private static class Entry {
+        final STable st;
+        final SwitchPoint[] switchPoints;
+        final CallSiteDescriptor csd;
+        final CodeRef cr;
+        final MethodHandle binder;
+
+        Entry(STable st, SwitchPoint[] switchPoints, CallSiteDescriptor csd, CodeRef cr) {
+            this.st = st;
+            this.switchPoints = switchPoints;
+            this.csd = csd;
+            this.cr = cr;
+            this.binder = ArgsExpectation.binderFor(cr.staticInfo, csd);
+        }
+
+        boolean isValid() {
+            for (SwitchPoint sp : switchPoints)
+                if (sp.hasBeenInvalidated())
+                    return false;
+            return true;
+        }
+    }
+
+    /* The receiver types cached so far, newest last, and the GlobalContext
+     * they're from. */
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private GlobalContext gc;
+    private int gcSwitches;
+
+    /* Whether we've given up on caching. */
+    public volatile boolean isMegamorphic;
+
+    /* Calls served by the cache and calls that had to look the method up.
+     * These are updated without synchronization, so are approximate when a
+     * site is hit from many threads at once. */
+    public long hits;
+    public long misses;
+
+    public MethodCallPIC(MutableCallSite cs, String name) {
+        this.cs = cs;
+        this.name = name;
+        if (STATS)
+            sites.add(this);
+    }
+
+    /* Links the miss handler in as the call site's target. */
+    public void link() {
+        cs.setTarget(collect(MethodHandles.insertArguments(miss, 0, this)));
+    }
+
+    /* Adds a type to the cache, calling the given code ref when it's seen.
+     * The method's STable is passed if it was invoked through its invocation
+     * spec, and so is assumed not to change either. */
+    public synchronized void add(GlobalContext gc, STable st, STable methodST, CallSiteDescriptor csd, CodeRef cr) {
+        if (isMegamorphic)
+            return;
+
+        /* Start over if we've moved to another GlobalContext. */
+        if (gc != this.gc) {
+            if (this.gc != null && ++gcSwitches > SharedCallSite.MAX_RELINKS) {
+                goMegamorphic();
+                return;
+            }
+            this.gc = gc;
+            entries.clear();
+        }
+
+        /* Drop any entries that have been invalidated, including any earlier
+         * one for this type. */
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Entry e = entries.get(i);
+            if (!e.isValid())
+                entries.remove(i);
+            else if (e.st == st)
+                return;
+        }
+
+        if (entries.size() >= DEPTH) {
+            goMegamorphic();
+            return;
+        }
+        entries.add(new Entry(st, methodST == null
+            ? new SwitchPoint[] { st.getSwitchPoint() }
+            : new SwitchPoint[] { st.getSwitchPoint(), methodST.getSwitchPoint() },
+            csd, cr));
+
+        /* Rebuild the chain, newest entry first. The guards only look at the
+         * invocant, which is always the first argument after the ThreadContext. */
+        MethodType type = cs.type();
+        MethodType guardType = type.dropParameterTypes(4, type.parameterCount())
+            .changeReturnType(boolean.class);
+        MethodHandle missed = collect(MethodHandles.insertArguments(miss, 0, this));
+        MethodHandle chain = missed;
+        for (Entry e : entries) {
+            MethodHandle target;
+            if (e.binder != null)
+                target = MethodHandles.foldArguments(
+                    MethodHandles.dropArguments(
+                        MethodHandles.insertArguments(e.binder, 1, e.cr),
+                        0, String.class, int.class).asType(type),
+                    MethodHandles.insertArguments(countHit, 0, this));
+            else
+                target = collect(MethodHandles.insertArguments(hit, 0, this, e.csd, e.cr));
+            for (SwitchPoint sp : e.switchPoints)
+                target = sp.guardWithTest(target, missed);
+            chain = MethodHandles.guardWithTest(
+                MethodHandles.insertArguments(guard, 0, e.st).asType(guardType),
+                target, chain);
+        }
+        cs.setTarget(chain);
+    }
+
+    private void goMegamorphic() {
+        isMegamorphic = true;
+        entries.clear();
+        gc = null;
+        cs.setTarget(collect(MethodHandles.insertArguments(megamorphic, 0, this)));
+    }
+
+    public synchronized int depth() {
+        return entries.size();
+    }
+
+    /* Adapts a handler taking the call site's arguments as an array. */
+    private MethodHandle collect(MethodHandle target) {
+        return target
+            .asCollector(Object[].class, cs.type().parameterCount() - 3)
+            .asType(cs.type());
+    }
+
+    private static void countHit(MethodCallPIC pic) {
+        pic.hits++;
+    }
+
+    /**
+     * Produces a table of the hit and miss counts of every call site, most
+     * missed first.
+     */
+    public static String report() {
+        List<MethodCallPIC> all = new ArrayList<MethodCallPIC>(sites);
+        final long[] missed = new long[all.size()];
+        Integer[] order = new Integer[all.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            missed[i] = all.get(i).misses;
+        }
+        java.util.Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(missed[b], missed[a]);
+            }
+        });
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-40s %6s %5s %14s %14s%n",
+            "method", "state", "types", "hits", "misses"));
+        for (int i : order) {
+            MethodCallPIC pic = all.get(i);
+            sb.append(String.format("%-40s %6s %5d %14d %14d%n",
+                pic.name, pic.isMegamorphic ? "mega" : "poly", pic.depth(),
+                pic.hits, missed[i]));
+        }
+        return sb.toString();
+    }
+}
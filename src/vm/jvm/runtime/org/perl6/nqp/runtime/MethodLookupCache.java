@@ -0,0 +1,74 @@
+package org.perl6.nqp.runtime;
+
+import org.perl6.nqp.sixmodel.STable;
+import org.perl6.nqp.sixmodel.SixModelObject;
+
+/**
+ * A global, fixed size cache of method lookups, keyed on the STable of the
+ * invocant and the method name. It remembers the answers given by published
+ * method caches: methods found, and methods known not to exist because the
+ * cache is authoritative. Lookups the HOW has to answer are not cached, as a
+ * HOW's find_method is free to answer differently each time.
+ *
+ * Entries are immutable and slots are overwritten without locking; a lost
+ * update only means a later miss. Each entry records the method cache epoch
+ * of its STable and the global epoch, and only counts while both still match;
+ * the former is bumped by STable.invalidateCaches when an STable's method
+ * cache is republished, the latter by invalidateAll when method tables change
+ * in ways that can't be tied to one STable.
+ */
+public class MethodLookupCache {
+    private static final int SIZE = 4096;
+    private static final int MASK = SIZE - 1;
+
+    private static final Entry[] entries = new Entry[SIZE];
+    private static volatile int globalEpoch;
+
+    public static final class Entry {
+        final STable st;
+        final String name;
+        final int epoch;
+        final int globalEpoch;
+        public final SixModelObject method;
+
+        Entry(STable st, String name, int epoch, int globalEpoch, SixModelObject method) {
+            this.st = st;
+            this.name = name;
+            this.epoch = epoch;
+            this.globalEpoch = globalEpoch;
+            this.method = method;
+        }
+    }
+
+    /* Looks up a method; returns null if there's no (valid) entry. The method
+     * in the entry returned is null if the lookup was known to fail. */
+    public static Entry probe(STable st, String name) {
+        Entry e = entries[index(st, name)];
+        if (e != null && e.st == st && e.epoch == st.methodCacheEpoch &&
+                e.globalEpoch == globalEpoch &&
+                (e.name == name || e.name.equals(name)))
+            return e;
+        return null;
+    }
+
+    /* Remembers the result of a lookup. The epochs passed must be those read
+     * before the lookup started, so that a lookup racing with an invalidation
+     * doesn't leave a stale entry behind. */
+    public static void store(STable st, String name, int epoch, int globalEpoch, SixModelObject method) {
+        entries[index(st, name)] = new Entry(st, name, epoch, globalEpoch, method);
+    }
+
+    public static int globalEpoch() {
+        return globalEpoch;
+    }
+
+    /* Invalidates all entries. */
+    public static synchronized void invalidateAll() {
+        globalEpoch++;
+    }
+
+    private static int index(STable st, String name) {
+        int h = System.identityHashCode(st) * 31 + name.hashCode();
+        return (h ^ (h >>> 12)) & MASK;
+    }
+}
@@ -0,0 +1,153 @@
+package org.perl6.nqp.runtime;
+
+import java.util.Arrays;
+
+/**
+ * Working state of the NFA evaluator. There is one of these per thread, so
+ * that running an NFA need not allocate. Compiled NFA matchers call back in
+ * to it as they cross edges, so the parts they use are public.
+ */
+public class NFARun {
+    /* Fates found so far, and the current and next state lists. */
+    final IntStack fates = new IntStack(16);
+    IntStack curst = new IntStack(16);
+    IntStack nextst = new IntStack(16);
+
+    /* Number of fates found before the current offset was considered. */
+    int prevFates;
+
+    /* Longest literal lengths, indexed by fate. */
+    long[] longlit = new long[200];  // needs proper sizing to # of alternatives
+    int usedlonglit;                 // lazy initialization highwater
+
+    /* "Done states" array. Rather than clearing it, we stamp it with a
+     * generation number that keeps going up across runs. */
+    int[] done = new int[64];
+    int gen;
+    private int maxGen;
+
+    /* The NFA's number of states, and where we are in the target. */
+    int numStates;
+    public String target;
+    public long pos;
+    long origPos;
+
+    /* States visited, counted only while gathering NFA statistics. DFA
+     * states count once each, however many NFA states they stand for. */
+    long visits;
+
+    /**
+     * Prepares to run an NFA with the given number of states over the target
+     * from the given offset.
+     */
+    void start(int numStates, String target, long pos) {
+        this.numStates = numStates;
+        this.target = target;
+        this.pos = pos;
+        this.origPos = pos;
+        fates.clear();
+        usedlonglit = 0;
+    }
+
+    /**
+     * Prepares for simulating an NFA, reserving a generation for each offset
+     * we might consider.
+     */
+    void startGenerations() {
+        if (done.length <= numStates)
+            done = new int[Math.max(numStates + 1, done.length * 2)];
+        int eos = target.length();
+        int gens = pos <= eos ? (int)(eos - pos) + 1 : 0;
+        if (maxGen > Integer.MAX_VALUE - gens - 1) {
+            Arrays.fill(done, 0);
+            maxGen = 0;
+        }
+        gen = maxGen + 1;
+        maxGen += gens;
+        curst.clear();
+        nextst.clear();
+    }
+
+    /**
+     * Crossed a fate edge. Check if we already saw this, and if so bump the
+     * entry we already saw.
+     */
+    public void fate(int arg) {
+        int[] items = fates.items;
+        int size = fates.size;
+        boolean foundFate = false;
+        for (int j = 0; j < size; j++) {
+            if (foundFate)
+                items[j - 1] = items[j];
+            if (items[j] == arg) {
+                foundFate = true;
+                if (j < prevFates)
+                    prevFates--;
+            }
+        }
+        if (arg < usedlonglit)
+            arg -= longlit[arg] << 24;
+        if (foundFate)
+            items[size - 1] = arg;
+        else
+            fates.push(arg);
+    }
+
+    /**
+     * Crossed an epsilon edge; visit the state it leads to at this offset,
+     * unless we already did.
+     */
+    public void epsilon(int to) {
+        if (to <= numStates && done[to] != gen && to != 0)
+            curst.push(to);
+    }
+
+    /**
+     * Crossed an edge consuming a char; visit the state it leads to at the
+     * next offset.
+     */
+    public void next(int to) {
+        nextst.push(to);
+    }
+
+    /**
+     * Crossed a longest literal edge for the specified fate.
+     */
+    public void longLit(int fate) {
+        while (usedlonglit <= fate)
+            longlit[usedlonglit++] = 0;
+        longlit[fate] = pos - origPos;
+    }
+
+    /**
+     * If we got multiple fates at an offset, sort them by the declaration
+     * order (represented by the fate number). In the future, we'll want to
+     * factor in longest literal prefix too. There are rarely more than a few,
+     * so an insertion sort (into descending order) does nicely.
+     */
+    void sortFates() {
+        int[] items = fates.items;
+        for (int i = prevFates + 1; i < fates.size; i++) {
+            int fate = items[i];
+            int j = i - 1;
+            while (j >= prevFates && items[j] < fate) {
+                items[j + 1] = items[j];
+                j--;
+            }
+            items[j + 1] = fate;
+        }
+    }
+
+    /**
+     * Strip any literal lengths, leaving only fates, and hand them back.
+     * They are only valid until the next run.
+     */
+    IntStack result() {
+        if (usedlonglit > 0) {
+            int[] items = fates.items;
+            for (int i = 0; i < fates.size; i++)
+                items[i] &= 0xffffff;
+        }
+        return fates;
+    }
+}
@@ -0,0 +1,51 @@
+package org.perl6.nqp.runtime;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event for a run of an NFA, emitted while NFA statistics are on. Only
+ * NFAStats refers to this, and only once it has found the JVM has JFR.
+ */
+@Name("org.perl6.nqp.NFARun")
+@Label("NFA Run")
+@Category({ "NQP", "Regex" })
+@Description("A run of an NFA by nfarunproto or nfarunalt")
+class NFARunEvent extends Event {
+    @Label("NFA")
+    @Description("Identity hash of the NFA, as shown by nqp::jvmnfastats")
+    int nfa;
+
+    @Label("NFA States")
+    int numStates;
+
+    @Label("Chars Scanned")
+    long chars;
+
+    @Label("States Visited")
+    long visited;
+
+    @Label("Fates")
+    int fates;
+
+    @Label("Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long time;
+
+    static void emit(int nfa, int numStates, long chars, long visited, int fates, long time) {
+        NFARunEvent event = new NFARunEvent();
+        if (!event.shouldCommit())
+            return;
+        event.nfa = nfa;
+        event.numStates = numStates;
+        event.chars = chars;
+        event.visited = visited;
+        event.fates = fates;
+        event.time = time;
+        event.commit();
+    }
+}
@@ -0,0 +1,116 @@
+package org.perl6.nqp.runtime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.perl6.nqp.sixmodel.reprs.NFAInstance;
+
+/**
+ * Matching statistics for an NFA, gathered when the JVM is started with the
+ * nqp.nfa.stats system property set (for example, through JAVA_TOOL_OPTIONS)
+ * and reported by nqp::jvmnfastats. Each run is also emitted as a JFR event
+ * where the JVM supports them.
+ */
+public class NFAStats {
+    /* Whether we gather statistics at all. Since this is a static final,
+     * HotSpot drops the checks for it, so they cost nothing when off. */
+    public static final boolean ENABLED = System.getProperty("nqp.nfa.stats") != null;
+
+    /* Whether we can emit JFR events; we only touch NFARunEvent if so. */
+    private static final boolean JFR = ENABLED && haveJFR();
+
+    /* Statistics for every NFA that has been run. */
+    private static final ConcurrentLinkedQueue<NFAStats> all = new ConcurrentLinkedQueue<NFAStats>();
+
+    private final int id;
+    private final int numStates;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder chars = new LongAdder();
+    private final LongAdder states = new LongAdder();
+    private final LongAdder fates = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    private NFAStats(NFAInstance nfa) {
+        this.id = System.identityHashCode(nfa);
+        this.numStates = nfa.numStates;
+    }
+
+    /**
+     * Records a run of the NFA that scanned the specified number of chars,
+     * visited the specified number of states and produced the specified
+     * number of fates.
+     */
+    public static void record(NFAInstance nfa, long numChars, long numStates, int numFates, long time) {
+        NFAStats stats = nfa.stats;
+        if (stats == null) {
+            synchronized (nfa) {
+                stats = nfa.stats;
+                if (stats == null) {
+                    nfa.stats = stats = new NFAStats(nfa);
+                    all.add(stats);
+                }
+            }
+        }
+        stats.calls.increment();
+        stats.chars.add(numChars);
+        stats.states.add(numStates);
+        stats.fates.add(numFates);
+        stats.nanos.add(time);
+        if (JFR)
+            NFARunEvent.emit(stats.id, stats.numStates, numChars, numStates, numFates, time);
+    }
+
+    /**
+     * Produces a report of the statistics so far, with the NFAs that visited
+     * the most states first.
+     */
+    public static String report() {
+        if (!ENABLED)
+            return "NFA statistics are off; set the nqp.nfa.stats system property to gather them\n";
+
+        /* Take a snapshot first, as other threads may still be matching. */
+        List<long[]> rows = new ArrayList<long[]>();
+        for (NFAStats stats : all)
+            rows.add(new long[] {
+                stats.id, stats.numStates, stats.calls.sum(), stats.chars.sum(),
+                stats.states.sum(), stats.fates.sum(), stats.nanos.sum()
+            });
+        Collections.sort(rows, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return Long.compare(b[4], a[4]);
+            }
+        });
+
+        long[] total = new long[7];
+        StringBuilder lines = new StringBuilder();
+        for (long[] row : rows) {
+            lines.append(String.format("%-10d %7d %12d %12d %12d %12d %10.3f\n",
+                row[0], row[1], row[2], row[3], row[4], row[5],
+                row[6] / 1e6));
+            for (int i = 2; i < 7; i++)
+                total[i] += row[i];
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-10s %7s %12s %12s %12s %12s %10s\n",
+            "nfa", "states", "calls", "chars", "visited", "fates", "ms"));
+        report.append(lines);
+        report.append(String.format("%-10s %7s %12d %12d %12d %12d %10.3f\n",
+            "total", "", total[2], total[3], total[4], total[5], total[6] / 1e6));
+        return report.toString();
+    }
+
+    private static boolean haveJFR() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        }
+        catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
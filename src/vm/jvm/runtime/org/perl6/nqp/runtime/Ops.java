@@ -39,9 +39,7 @@ import java.nio.file.attribute.PosixFilePermissions;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.Normalizer;
-import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
@@ -103,7 +101,11 @@ import org.perl6.nqp.sixmodel.reprs.IOHandleInstance;
 import org.perl6.nqp.sixmodel.reprs.JavaObjectWrapper;
 import org.perl6.nqp.sixmodel.reprs.MultiCacheInstance;
 import org.perl6.nqp.sixmodel.reprs.NFA;
+import org.perl6.nqp.sixmodel.reprs.NFACache;
+import org.perl6.nqp.sixmodel.reprs.NFACompiler;
+import org.perl6.nqp.sixmodel.reprs.NFADFA;
 import org.perl6.nqp.sixmodel.reprs.NFAInstance;
+import org.perl6.nqp.sixmodel.reprs.NFAMatcher;
 import org.perl6.nqp.sixmodel.reprs.NFAStateInfo;
 import org.perl6.nqp.sixmodel.reprs.NativeCallBody;
 import org.perl6.nqp.sixmodel.reprs.NativeCallInstance;
@@ -125,6 +127,7 @@ import org.perl6.nqp.sixmodel.reprs.SCRefInstance;
 import org.perl6.nqp.sixmodel.reprs.SemaphoreInstance;
 import org.perl6.nqp.sixmodel.reprs.VMArray;
 import org.perl6.nqp.sixmodel.reprs.VMArrayInstance;
+import org.perl6.nqp.sixmodel.reprs.VMArrayInstance_i;
 import org.perl6.nqp.sixmodel.reprs.VMArrayInstance_i16;
 import org.perl6.nqp.sixmodel.reprs.VMArrayInstance_i32;
 import org.perl6.nqp.sixmodel.reprs.VMArrayInstance_i8;
@@ -1565,27 +1568,47 @@ public final class Ops {
         throw ExceptionHandling.dieInternal(tc, "Lexical '" + name + "' not found");
     }
 
-    /* Dynamic lexicals. */
-    public static SixModelObject bindlexdyn(SixModelObject value, String name, ThreadContext tc) {
-        CallFrame curFrame = tc.curFrame.caller;
+    /* Dynamic lexicals. The frame a lookup starts from remembers where it
+     * found the variable, and a later lookup passing through that frame (from
+     * it or from a deeper one) can go straight there rather than walk the rest
+     * of the caller chain. The frame and index are remembered, not the value,
+     * so binds are seen. The caller chain only changes when a continuation is
+     * resumed, which forgets what the resumed frames found. */
+    private static boolean finddyn(CallFrame start, String name) {
+        CallFrame curFrame = start;
         while (curFrame != null) {
+            String cachedName = curFrame.dynlexName;
+            if (cachedName != null && (cachedName == name || cachedName.equals(name))) {
+                if (curFrame != start) {
+                    start.dynlexName = name;
+                    start.dynlexFrame = curFrame.dynlexFrame;
+                    start.dynlexIdx = curFrame.dynlexIdx;
+                }
+                return true;
+            }
             Integer idx =  curFrame.codeRef.staticInfo.oTryGetLexicalIdx(name);
             if (idx != null) {
-                curFrame.oLex[idx] = value;
-                return value;
+                start.dynlexName = name;
+                start.dynlexFrame = curFrame;
+                start.dynlexIdx = idx;
+                return true;
             }
             curFrame = curFrame.caller;
         }
+        return false;
+    }
+    public static SixModelObject bindlexdyn(SixModelObject value, String name, ThreadContext tc) {
+        CallFrame start = tc.curFrame.caller;
+        if (start != null && finddyn(start, name)) {
+            start.dynlexFrame.oLex[start.dynlexIdx] = value;
+            return value;
+        }
         throw ExceptionHandling.dieInternal(tc, "Dyanmic variable '" + name + "' not found");
     }
     public static SixModelObject getlexdyn(String name, ThreadContext tc) {
-        CallFrame curFrame = tc.curFrame.caller;
-        while (curFrame != null) {
-            Integer idx =  curFrame.codeRef.staticInfo.oTryGetLexicalIdx(name);
-            if (idx != null)
-                return curFrame.oLex[idx];
-            curFrame = curFrame.caller;
-        }
+        CallFrame start = tc.curFrame.caller;
+        if (start != null && finddyn(start, name))
+            return start.dynlexFrame.oLex[start.dynlexIdx];
         return null;
     }
     public static SixModelObject getlexcaller(String name, ThreadContext tc) {
@@ -1659,6 +1682,7 @@ public final class Ops {
         SixModelObject ContextRef = tc.gc.ContextRef;
         SixModelObject wrap = ContextRef.st.REPR.allocate(tc, ContextRef.st);
         ((ContextRefInstance)wrap).context = tc.curFrame;
+        tc.curFrame.escape();
         return wrap;
     }
     public static SixModelObject ctxouter(SixModelObject ctx, ThreadContext tc) {
@@ -1903,12 +1927,32 @@ public final class Ops {
         return result;
     }
 
+    /* Finds a named argument that hasn't been used yet, marks it used and
+     * returns its nameMap entry; returns -1 if there's no such argument. */
+    private static int useNamed(CallFrame cf, CallSiteDescriptor cs, String name) {
+        int idx = cs.namedIndex(name);
+        if (idx < 0)
+            return -1;
+        if (idx < 64) {
+            long bit = 1L << idx;
+            if ((cf.namedUsed & bit) != 0)
+                return -1;
+            cf.namedUsed |= bit;
+        }
+        else {
+            if (cf.namedUsedMore == null)
+                cf.namedUsedMore = new boolean[cs.namedNames.length - 64];
+            if (cf.namedUsedMore[idx - 64])
+                return -1;
+            cf.namedUsedMore[idx - 64] = true;
+        }
+        return cs.namedLookups[idx];
+    }
+
     /* Required named parameter getting. */
     public static SixModelObject namedparam_o(CallFrame cf, CallSiteDescriptor cs, Object[] args, String name) {
-        if (cf.workingNameMap == null)
-            cf.workingNameMap = new HashMap<String, Integer>(cs.nameMap);
-        Integer lookup = cf.workingNameMap.remove(name);
-        if (lookup != null) {
+        int lookup = useNamed(cf, cs, name);
+        if (lookup >= 0) {
             switch (lookup & 7) {
             case CallSiteDescriptor.ARG_OBJ:
                 return (SixModelObject)args[lookup >> 3];
@@ -1926,10 +1970,8 @@ public final class Ops {
             throw ExceptionHandling.dieInternal(cf.tc, "Required named argument '" + name + "' not passed");
     }
     public static long namedparam_i(CallFrame cf, CallSiteDescriptor cs, Object[] args, String name) {
-        if (cf.workingNameMap == null)
-            cf.workingNameMap = new HashMap<String, Integer>(cs.nameMap);
-        Integer lookup = cf.workingNameMap.remove(name);
-        if (lookup != null) {
+        int lookup = useNamed(cf, cs, name);
+        if (lookup >= 0) {
             switch ((lookup & 7)) {
             case CallSiteDescriptor.ARG_INT:
                 return (long)args[lookup >> 3];
@@ -1947,10 +1989,8 @@ public final class Ops {
             throw ExceptionHandling.dieInternal(cf.tc, "Required named argument '" + name + "' not passed");
     }
     public static double namedparam_n(CallFrame cf, CallSiteDescriptor cs, Object[] args, String name) {
-        if (cf.workingNameMap == null)
-            cf.workingNameMap = new HashMap<String, Integer>(cs.nameMap);
-        Integer lookup = cf.workingNameMap.remove(name);
-        if (lookup != null) {
+        int lookup = useNamed(cf, cs, name);
+        if (lookup >= 0) {
             switch ((lookup & 7)) {
             case CallSiteDescriptor.ARG_NUM:
                 return (double)args[lookup >> 3];
@@ -1968,10 +2008,8 @@ public final class Ops {
             throw ExceptionHandling.dieInternal(cf.tc, "Required named argument '" + name + "' not passed");
     }
     public static String namedparam_s(CallFrame cf, CallSiteDescriptor cs, Object[] args, String name) {
-        if (cf.workingNameMap == null)
-            cf.workingNameMap = new HashMap<String, Integer>(cs.nameMap);
-        Integer lookup = cf.workingNameMap.remove(name);
-        if (lookup != null) {
+        int lookup = useNamed(cf, cs, name);
+        if (lookup >= 0) {
             switch ((lookup & 7)) {
             case CallSiteDescriptor.ARG_STR:
                 return (String)args[lookup >> 3];
@@ -1991,10 +2029,8 @@ public final class Ops {
 
     /* Optional named parameter getting. */
     public static SixModelObject namedparam_opt_o(CallFrame cf, CallSiteDescriptor cs, Object[] args, String name) {
-        if (cf.workingNameMap == null)
-            cf.workingNameMap = new HashMap<String, Integer>(cs.nameMap);
-        Integer lookup = cf.workingNameMap.remove(name);
-        if (lookup != null) {
+        int lookup = useNamed(cf, cs, name);
+        if (lookup >= 0) {
             cf.tc.lastParameterExisted = 1;
             switch (lookup & 7) {
             case CallSiteDescriptor.ARG_OBJ:
@@ -2015,10 +2051,8 @@ public final class Ops {
         }
     }
     public static long namedparam_opt_i(CallFrame cf, CallSiteDescriptor cs, Object[] args, String name) {
-        if (cf.workingNameMap == null)
-            cf.workingNameMap = new HashMap<String, Integer>(cs.nameMap);
-        Integer lookup = cf.workingNameMap.remove(name);
-        if (lookup != null) {
+        int lookup = useNamed(cf, cs, name);
+        if (lookup >= 0) {
             cf.tc.lastParameterExisted = 1;
             switch ((lookup & 7)) {
             case CallSiteDescriptor.ARG_INT:
@@ -2039,10 +2073,8 @@ public final class Ops {
         }
     }
     public static double namedparam_opt_n(CallFrame cf, CallSiteDescriptor cs, Object[] args, String name) {
-        if (cf.workingNameMap == null)
-            cf.workingNameMap = new HashMap<String, Integer>(cs.nameMap);
-        Integer lookup = cf.workingNameMap.remove(name);
-        if (lookup != null) {
+        int lookup = useNamed(cf, cs, name);
+        if (lookup >= 0) {
             cf.tc.lastParameterExisted = 1;
             switch ((lookup & 7)) {
             case CallSiteDescriptor.ARG_NUM:
@@ -2063,10 +2095,8 @@ public final class Ops {
         }
     }
     public static String namedparam_opt_s(CallFrame cf, CallSiteDescriptor cs, Object[] args, String name) {
-        if (cf.workingNameMap == null)
-            cf.workingNameMap = new HashMap<String, Integer>(cs.nameMap);
-        Integer lookup = cf.workingNameMap.remove(name);
-        if (lookup != null) {
+        int lookup = useNamed(cf, cs, name);
+        if (lookup >= 0) {
             cf.tc.lastParameterExisted = 1;
             switch ((lookup & 7)) {
             case CallSiteDescriptor.ARG_STR:
@@ -2094,11 +2124,14 @@ public final class Ops {
         SixModelObject resType = hllConfig.slurpyHashType;
         SixModelObject result = resType.st.REPR.allocate(tc, resType.st);
 
-        /* Populate it. */
-        if (cf.workingNameMap == null)
-            cf.workingNameMap = new HashMap<String, Integer>(cs.nameMap);
-        for (String name : cf.workingNameMap.keySet()) {
-            Integer lookup = cf.workingNameMap.get(name);
+        /* Populate it with the named arguments not used yet. */
+        String[] names = cs.namedNames;
+        for (int i = 0; i < names.length; i++) {
+            if (i < 64 ? (cf.namedUsed & (1L << i)) != 0
+                       : cf.namedUsedMore != null && cf.namedUsedMore[i - 64])
+                continue;
+            String name = names[i];
+            int lookup = cs.namedLookups[i];
             switch (lookup & 7) {
             case CallSiteDescriptor.ARG_OBJ:
                 result.bind_key_boxed(tc, name, (SixModelObject)args[lookup >> 3]);
@@ -2547,20 +2580,28 @@ public final class Ops {
         if (invocant == null)
             throw ExceptionHandling.dieInternal(tc, "Cannot call method '" + name + "' on a null object");
         invocant = decont(invocant, tc);
+        STable st = invocant.st;
 
-        Map<String, SixModelObject> cache = invocant.st.MethodCache;
+        /* See if we've done this lookup before. */
+        MethodLookupCache.Entry seen = MethodLookupCache.probe(st, name);
+        if (seen != null)
+            return seen.method;
+        int epoch = st.methodCacheEpoch;
+        int globalEpoch = MethodLookupCache.globalEpoch();
 
         /* Try the by-name method cache, if the HOW published one. */
+        Map<String, SixModelObject> cache = st.MethodCache;
         if (cache != null) {
             SixModelObject found = cache.get(name);
-            if (found != null)
+            if (found != null || (st.ModeFlags & STable.METHOD_CACHE_AUTHORITATIVE) != 0) {
+                MethodLookupCache.store(st, name, epoch, globalEpoch, found);
                 return found;
-            if ((invocant.st.ModeFlags & STable.METHOD_CACHE_AUTHORITATIVE) != 0)
-                return null;
+            }
         }
 
-        /* Otherwise delegate to the HOW. */
-        SixModelObject how = invocant.st.HOW;
+        /* Otherwise delegate to the HOW. Its answers may change from call to
+         * call, so they're not cached. */
+        SixModelObject how = st.HOW;
         SixModelObject find_method = findmethod(how, "find_method", tc);
         invokeDirect(tc, find_method, findmethCallSite,
                 new Object[] { how, invocant, name });
@@ -2603,6 +2644,7 @@ public final class Ops {
             cache.put(iterkey_s(cur, tc), iterval(cur, tc));
         }
         obj.st.MethodCache = cache;
+        obj.st.invalidateCaches();
         if (obj.st.sc != null)
             scwbSTable(tc, obj.st);
         return obj;
@@ -2612,6 +2654,7 @@ public final class Ops {
         if (flag != 0)
             newFlags = newFlags | STable.METHOD_CACHE_AUTHORITATIVE;
         obj.st.ModeFlags = newFlags;
+        obj.st.invalidateCaches();
         if (obj.st.sc != null)
             scwbSTable(tc, obj.st);
         return obj;
@@ -2622,6 +2665,7 @@ public final class Ops {
         for (long i = 0; i < elems; i++)
             cache[(int)i] = types.at_pos_boxed(tc, i);
         obj.st.TypeCheckCache = cache;
+        obj.st.invalidateCaches();
         if (obj.st.sc != null)
             scwbSTable(tc, obj.st);
         return obj;
@@ -2629,6 +2673,7 @@ public final class Ops {
     public static SixModelObject settypecheckmode(SixModelObject obj, long mode, ThreadContext tc) {
         obj.st.ModeFlags = (int)mode |
             (obj.st.ModeFlags & (~STable.TYPE_CHECK_CACHE_FLAG_MASK));
+        obj.st.invalidateCaches();
         if (obj.st.sc != null)
             scwbSTable(tc, obj.st);
         return obj;
@@ -2644,6 +2689,7 @@ public final class Ops {
         is.Hint = STable.NO_HINT;
         is.InvocationHandler = invocationHandler;
         obj.st.InvocationSpec = is;
+        obj.st.invalidateCaches();
         return obj;
     }
     public static long isinvokable(SixModelObject obj, ThreadContext tc) {
@@ -2663,9 +2709,8 @@ public final class Ops {
         if (cache != null) {
             /* We have the cache, so just look for the type object we
              * want to be in there. */
-            for (int i = 0; i < cache.length; i++)
-                if (cache[i] == type)
-                    return 1;
+            if (obj.st.typeCheckCacheContains(cache, type))
+                return 1;
 
             /* If the type check cache is definitive, we're done. */
             if ((typeCheckMode & STable.TYPE_CHECK_CACHE_THEN_METHOD) == 0 &&
@@ -3503,7 +3548,6 @@ public final class Ops {
         /* Set up the type as parameterized. */
         ParametricType pt = new ParametricType();
         pt.parameterizer = parameterizer;
-        pt.lookup = new ArrayList<Map.Entry<SixModelObject, SixModelObject>>();
         st.parametricity = pt;
 
         return type;
@@ -3514,44 +3558,38 @@ public final class Ops {
         if (!(st.parametricity instanceof ParametricType))
             ExceptionHandling.dieInternal(tc, "This type is not parametric");
 
-        /* Do a lookup in the parameterizations array. */
-        List<Map.Entry<SixModelObject, SixModelObject>> lookup = ((ParametricType)st.parametricity).lookup;
-        int numLookups = lookup.size();
-        long paramsElems = params.elems(tc);
-        for (int i = 0; i < numLookups; i++) {
-            Map.Entry<SixModelObject, SixModelObject> entry = lookup.get(i);
-            SixModelObject compare = entry.getKey();
-            if (paramsElems == compare.elems(tc)) {
-                boolean match = true;
-                for (long j = 0; j < paramsElems; j++) {
-                    SixModelObject want = params.at_pos_boxed(tc, j);
-                    SixModelObject got = compare.at_pos_boxed(tc, j);
-                    /* XXX More cases to consider here. */
-                    if (want != got) {
-                        match = false;
-                        break;
-                    }
-                }
-                if (match)
-                    return entry.getValue();
-            }
-        }
-
-        /* It wasn't found; run parameterizer. */
-        invokeDirect(tc, ((ParametricType)st.parametricity).parameterizer,
-            parameterizeCallSite, new Object[] { st.WHAT, params });
-        SixModelObject result = result_o(tc.curFrame);
+        /* Do a lookup in the parameterizations table. */
+        ParametricType parametric = (ParametricType)st.parametricity;
+        ParametricType.Parameters key = new ParametricType.Parameters(params, tc);
+        SixModelObject found = parametric.find(key);
+        if (found != null)
+            return found;
+
+        /* It wasn't found; unless another thread is already producing it, run
+         * parameterizer. */
+        found = parametric.claim(key);
+        if (found != null)
+            return found;
+        SixModelObject result;
+        try {
+            invokeDirect(tc, parametric.parameterizer,
+                parameterizeCallSite, new Object[] { st.WHAT, params });
+            result = result_o(tc.curFrame);
 
-        /* Mark parametric and stash required data. */
-        STable newSTable = result.st;
-        ParameterizedType pt = new ParameterizedType();
-        pt.parametricType = type;
-        pt.parameters = params;
-        newSTable.parametricity = pt;
+            /* Mark parametric and stash required data. */
+            STable newSTable = result.st;
+            ParameterizedType pt = new ParameterizedType();
+            pt.parametricType = type;
+            pt.parameters = params;
+            newSTable.parametricity = pt;
+        }
+        catch (Throwable t) {
+            parametric.abandon(key);
+            throw t;
+        }
 
         /* Add to lookup table. */
-        /* XXX handle possible race. */
-        lookup.add(new AbstractMap.SimpleEntry<>(params, result));
+        parametric.publish(key, result);
 
         return result;
     }
@@ -4713,77 +4751,10 @@ public final class Ops {
             throw ExceptionHandling.dieInternal(tc, "decodertakebytes requires an instance with the Decoder REPR");
     }
 
-    private static final int CCLASS_ANY          = 65535;
-    private static final int CCLASS_UPPERCASE    = 1;
-    private static final int CCLASS_LOWERCASE    = 2;
-    private static final int CCLASS_ALPHABETIC   = 4;
-    private static final int CCLASS_NUMERIC      = 8;
-    private static final int CCLASS_HEXADECIMAL  = 16;
-    private static final int CCLASS_WHITESPACE   = 32;
-    private static final int CCLASS_PRINTING     = 64;
-    private static final int CCLASS_BLANK        = 256;
-    private static final int CCLASS_CONTROL      = 512;
-    private static final int CCLASS_PUNCTUATION  = 1024;
-    private static final int CCLASS_ALPHANUMERIC = 2048;
-    private static final int CCLASS_NEWLINE      = 4096;
-    private static final int CCLASS_WORD         = 8192;
-    private static final int PUNCT_TYPES =
-        (1 << Character.CONNECTOR_PUNCTUATION) | (1 << Character.DASH_PUNCTUATION) |
-        (1 << Character.END_PUNCTUATION) | (1 << Character.FINAL_QUOTE_PUNCTUATION) |
-        (1 << Character.INITIAL_QUOTE_PUNCTUATION) | (1 << Character.OTHER_PUNCTUATION) |
-        (1 << Character.START_PUNCTUATION);
-    private static final int NONPRINT_TYPES =
-        (1 << Character.CONTROL) | (1 << Character.SURROGATE) | (1 << Character.UNASSIGNED) |
-        (1 << Character.LINE_SEPARATOR) | (1 << Character.PARAGRAPH_SEPARATOR);
-
-
     public static long iscclass(long cclass, String target, long offset) {
         if (offset < 0 || offset >= target.length())
             return 0;
-        char test = target.charAt((int)offset);
-        switch ((int)cclass) {
-        case CCLASS_ANY:
-            return 1;
-        case CCLASS_NUMERIC:
-            return Character.isDigit(test) ? 1 : 0;
-        case CCLASS_WHITESPACE:
-            if (Character.isSpaceChar(test)) return 1;
-            if (test >= '\t' && test <= '\r') return 1;
-            if (test == '\u0085') return 1;
-            return 0;
-        case CCLASS_PRINTING:
-            if (((1 << Character.getType(test)) & NONPRINT_TYPES) != 0) return 0;
-            return test < '\t' || test > '\r' ? 1 : 0;
-        case CCLASS_WORD:
-            return test == '_' || Character.isLetterOrDigit(test) ? 1 : 0;
-        case CCLASS_NEWLINE:
-            return (Character.getType(test) == Character.LINE_SEPARATOR) ||
-                    (test == '\n' || test == '\u000b' || test == '\f' || test == '\r' ||
-                     test == '\u0085' || test == '\u2029')
-                    ? 1 : 0;
-        case CCLASS_ALPHABETIC:
-            return Character.isAlphabetic(test) ? 1 : 0;
-        case CCLASS_UPPERCASE:
-            return Character.isUpperCase(test) ? 1 : 0;
-        case CCLASS_LOWERCASE:
-            return Character.isLowerCase(test) ? 1 : 0;
-        case CCLASS_HEXADECIMAL:
-            return Character.isDigit(test) ||
-                    (test >= 'A' && test <= 'F' || test >= 'a' && test <= 'f')
-                    ? 1 : 0;
-        case CCLASS_BLANK:
-            return (Character.getType(test) == Character.SPACE_SEPARATOR) ||
-                    (test == '\t')
-                    ? 1 : 0;
-        case CCLASS_CONTROL:
-            return Character.isISOControl(test) ? 1 : 0;
-        case CCLASS_PUNCTUATION:
-            return ((1 << Character.getType(test)) & PUNCT_TYPES) != 0 ? 1 : 0;
-        case CCLASS_ALPHANUMERIC:
-            return Character.isLetterOrDigit(test) ? 1 : 0;
-        default:
-            return 0;
-        }
+        return CharClassTable.matches(cclass, target.charAt((int)offset)) ? 1 : 0;
     }
 
     public static long checkcrlf(String tgt, long pos, long eos) {
@@ -4795,13 +4766,7 @@ public final class Ops {
         long end = offset + count;
         end = length < end ? length : end;
 
-        for (long pos = offset; pos < end; pos++) {
-            if (iscclass(cclass, target, pos) > 0) {
-                return pos;
-            }
-        }
-
-        return end;
+        return CharClassTable.find(CharClassTable.bitFor(cclass), target, offset, end);
     }
 
     public static long findnotcclass(long cclass, String target, long offset, long count) {
@@ -4809,13 +4774,7 @@ public final class Ops {
         long end = offset + count;
         end = length < end ? length : end;
 
-        for (long pos = offset; pos < end; pos++) {
-            if (iscclass(cclass, target, pos) == 0) {
-                return pos;
-            }
-        }
-
-        return end;
+        return CharClassTable.findNot(CharClassTable.bitFor(cclass), target, offset, end);
     }
 
     private static HashMap<String,String> canonNames = new HashMap<String, String>();
@@ -5403,6 +5362,7 @@ public final class Ops {
         if (code instanceof CodeRef) {
             CodeRef clone = (CodeRef)code.clone(tc);
             clone.outer = tc.curFrame;
+            tc.curFrame.escape();
             return clone;
         }
         else {
@@ -6003,6 +5963,7 @@ public final class Ops {
         if (obj instanceof VMExceptionInstance) {
             VMExceptionInstance ex = (VMExceptionInstance)obj;
             ex.origin = tc.curFrame;
+            ex.origin.escape();
             ex.nativeTrace = (new Throwable()).getStackTrace();
             ExceptionHandling.handlerDynamic(tc, ex.category, false, ex);
         }
@@ -6387,6 +6348,7 @@ public final class Ops {
                 curEdge++;
             }
         }
+        NFACache.intern(nfa);
 
         return nfa;
     }
@@ -6395,14 +6357,19 @@ public final class Ops {
     }
     public static SixModelObject nfarunproto(SixModelObject nfa, String target, long pos, ThreadContext tc) {
         /* Run the NFA. */
-        int[] fates = runNFA(tc, (NFAInstance)nfa, target, pos);
+        IntStack fates = runNFA(tc, (NFAInstance)nfa, target, pos);
 
         /* Copy results into an RIA. */
         SixModelObject BOOTIntArray = tc.gc.BOOTIntArray;
         SixModelObject fateRes = BOOTIntArray.st.REPR.allocate(tc, BOOTIntArray.st);
-        for (int i = 0; i < fates.length; i++) {
-            tc.native_i = fates[i];
-            fateRes.bind_pos_native(tc, i);
+        if (fateRes instanceof VMArrayInstance_i) {
+            ((VMArrayInstance_i)fateRes).push_ints(tc, fates.items, fates.size);
+        }
+        else {
+            for (int i = 0; i < fates.size; i++) {
+                tc.native_i = fates.items[i];
+                fateRes.bind_pos_native(tc, i);
+            }
         }
 
         return fateRes;
@@ -6410,12 +6377,28 @@ public final class Ops {
     public static SixModelObject nfarunalt(SixModelObject nfa, String target, long pos,
             SixModelObject bstack, SixModelObject cstack, SixModelObject marks, ThreadContext tc) {
         /* Run the NFA. */
-        int[] fates = runNFA(tc, (NFAInstance)nfa, target, pos);
+        IntStack fates = runNFA(tc, (NFAInstance)nfa, target, pos);
 
         /* Push the results onto the bstack. */
         long caps = cstack == null || cstack instanceof TypeObject ? 0 : cstack.elems(tc);
-        for (int i = 0; i < fates.length; i++) {
-            marks.at_pos_native(tc, fates[i]);
+        if (bstack instanceof VMArrayInstance_i) {
+            /* Make room for all of them at once and write them straight in. */
+            if (fates.size == 0)
+                return nfa;
+            VMArrayInstance_i bs = (VMArrayInstance_i)bstack;
+            int at = bs.reserve_native(tc, 4 * fates.size);
+            long[] slots = bs.slots;
+            for (int i = 0; i < fates.size; i++) {
+                marks.at_pos_native(tc, fates.items[i]);
+                slots[at++] = tc.native_i;
+                slots[at++] = pos;
+                slots[at++] = 0;
+                slots[at++] = caps;
+            }
+            return nfa;
+        }
+        for (int i = 0; i < fates.size; i++) {
+            marks.at_pos_native(tc, fates.items[i]);
             bstack.push_native(tc);
             tc.native_i = pos;
             bstack.push_native(tc);
@@ -6428,215 +6411,268 @@ public final class Ops {
         return nfa;
     }
 
-    /* The NFA evaluator. */
-    private static int[] runNFA(ThreadContext tc, NFAInstance nfa, String target, long pos) {
+    public static String jvmnfastats(ThreadContext tc) {
+        return NFAStats.report();
+    }
+
+    /* Runs an NFA, recording statistics about the run if we're gathering
+     * them. The fates are only valid until the next run. */
+    private static IntStack runNFA(ThreadContext tc, NFAInstance nfa, String target, long pos) {
+        if (!NFAStats.ENABLED)
+            return evaluateNFA(tc, nfa, target, pos);
+
+        NFARun run = tc.nfarun;
+        long startTime = System.nanoTime();
+        run.visits = 0;
+        IntStack fates = evaluateNFA(tc, nfa, target, pos);
+        long scanned = Math.min(run.pos, target.length()) - pos;
+        NFAStats.record(nfa, scanned > 0 ? scanned : 0, run.visits, fates.size,
+            System.nanoTime() - startTime);
+        return fates;
+    }
+
+    /* The NFA evaluator. Runs the NFA's lazily built DFA where it can, and
+     * falls back to simulating the NFA once the DFA is full. */
+    private static IntStack evaluateNFA(ThreadContext tc, NFAInstance nfa, String target, long pos) {
+        NFARun run = tc.nfarun;
+        run.start(nfa.numStates, target, pos);
+
+        NFADFA dfa = nfa.dfa;
+        if (dfa == null)
+            nfa.dfa = dfa = new NFADFA(nfa);
+        if (dfa.cannotMatch(target, pos))
+            return run.result();
+        if (runDFA(run, dfa))
+            return run.result();
+
+        run.start(nfa.numStates, target, pos);
+        simulateNFA(tc, run, nfa);
+        return run.result();
+    }
+
+    /* Runs an NFA's DFA. Returns false if the DFA lacks a state it needs and
+     * has no room left to build it. */
+    private static boolean runDFA(NFARun run, NFADFA dfa) {
+        NFADFA.State cur = dfa.start;
+        if (cur == null)
+            return false;
+
+        String target = run.target;
         int eos = target.length();
-        int gen = 1;
+        while (cur != null && run.pos <= eos) {
+            /* Save how many fates we have before this position is considered. */
+            run.prevFates = run.fates.size;
+            if (NFAStats.ENABLED)
+                run.visits++;
+
+            NFADFA.Transition trans = null;
+            if (run.pos < eos) {
+                trans = dfa.transition(cur, target, (int)run.pos);
+                if (trans == null)
+                    return false;
+            }
+
+            /* Cross the fates, noting any longest literals at the point the
+             * NFA evaluator would have seen them. */
+            int[] stFates = cur.fates;
+            int ll = 0;
+            for (int i = 0; i <= stFates.length; i++) {
+                if (trans != null) {
+                    while (ll < trans.longLits.length && trans.longLitsAt[ll] <= i)
+                        run.longLit(trans.longLits[ll++]);
+                }
+                if (i < stFates.length)
+                    run.fate(stFates[i]);
+            }
+
+            /* Move to next character. */
+            cur = trans == null ? null : trans.target;
+            run.pos++;
+
+            run.sortFates();
+        }
+
+        return true;
+    }
+
+    /* Simulates the NFA directly, using its compiled matcher if it has one.
+     * NFAs that keep ending up here get compiled once they're hot. */
+    private static void simulateNFA(ThreadContext tc, NFARun run, NFAInstance nfa) {
+        NFADFA dfa = nfa.dfa;
+        NFAMatcher matcher = dfa.matcher;
+        if (matcher == null && ++dfa.simulations == NFACompiler.COMPILE_THRESHOLD)
+            dfa.matcher = matcher = NFACompiler.compile(tc, nfa);
 
-        /* Allocate a "done states" array. */
+        String target = run.target;
+        int eos = target.length();
         int numStates = nfa.numStates;
-        int[] done = new int[numStates + 1];
-        long orig_pos = pos;
-
-        /* Clear out other re-used arrays. */
-        ArrayList<Integer> fates = tc.fates;
-        ArrayList<Integer> curst = tc.curst;
-        ArrayList<Integer> nextst = tc.nextst;
-        curst.clear();
-        nextst.clear();
-        fates.clear();
-
-        long[] longlit = tc.curlonglit;  // needs proper sizing to # of alternatives
-        int usedlonglit = 0;             // lazy initialization highwater
-
-        nextst.add(1);
-        while (!nextst.isEmpty() && pos <= eos) {
+        run.startGenerations();
+        int[] done = run.done;
+
+        if (dfa.start != null && run.pos <= eos) {
+            /* Take the first step from the DFA's start state, so we only
+             * look at the edges the first char lets us cross. */
+            run.prevFates = run.fates.size;
+            dfa.firstStep(run);
+            run.pos++;
+            run.gen++;
+            run.sortFates();
+        }
+        else {
+            run.nextst.push(1);
+        }
+        while (!run.nextst.isEmpty() && run.pos <= eos) {
             /* Translation of:
              *    my @curst := @nextst;
              *    @nextst := [];
              * But avoids an extra allocation per offset. */
-            ArrayList<Integer> temp = curst;
-            curst = nextst;
-            temp.clear();
-            nextst = temp;
+            IntStack curst = run.nextst;
+            run.nextst = run.curst;
+            run.nextst.clear();
+            run.curst = curst;
 
             /* Save how many fates we have before this position is considered. */
-            int prevFates = fates.size();
+            run.prevFates = run.fates.size;
 
+            int gen = run.gen;
+            int ord = run.pos < eos ? target.charAt((int)run.pos) : -1;
             while (!curst.isEmpty()) {
-                int top = curst.size() - 1;
-                int st = curst.get(top);
-                curst.remove(top);
+                int st = curst.pop();
                 if (st <= numStates) {
                     if (done[st] == gen)
                         continue;
                     done[st] = gen;
                 }
+                if (NFAStats.ENABLED)
+                    run.visits++;
 
-                NFAStateInfo[] edgeInfo = nfa.states[st - 1];
-                for (int i = 0; i < edgeInfo.length; i++) {
-                    int act = edgeInfo[i].act;
-                    int to  = edgeInfo[i].to;
+                if (matcher != null)
+                    matcher.visit(run, st, ord);
+                else
+                    visitNFAState(run, nfa.states[st - 1], ord);
+            }
 
-                    if (act <= NFA.EDGE_EPSILON) {
-                        if (act < 0) {
-                            act &= 0xff;
-                        }
-                        else if (act == NFA.EDGE_FATE) {
-                            /* Crossed a fate edge. Check if we already saw this, and
-                             * if so bump the entry we already saw. */
-                            int arg = edgeInfo[i].arg_i;
-                            boolean foundFate = false;
-                            arg &= 0xffffff;   // can go away after reboostrap?
-                            for (int j = 0; j < fates.size(); j++) {
-                                if (foundFate)
-                                    fates.set(j - 1, fates.get(j));
-                                if (fates.get(j )== arg) {
-                                    foundFate = true;
-                                    if (j < prevFates)
-                                        prevFates--;
-                                }
-                            }
-                            if (arg < usedlonglit)
-                                arg -= longlit[arg] << 24;
-                            if (foundFate)
-                                fates.set(fates.size() - 1, arg);
-                            else
-                                fates.add(arg);
-                            continue;
-                        }
-                        else if (act == NFA.EDGE_EPSILON && to <= numStates && done[to] != gen) {
-                            if (to != 0)
-                                curst.add(to);
-                            continue;
-                        }
-                    }
+            /* Move to next character and generation. */
+            run.pos++;
+            run.gen++;
 
-                    if (pos >= eos) {
-                        /* Can't match, so drop state. */
-                        continue;
-                    }
+            run.sortFates();
+        }
+    }
 
-                    switch (act) {
-                        case NFA.EDGE_CODEPOINT: {
-                            char arg = (char)edgeInfo[i].arg_i;
-                            if (target.charAt((int)pos) == arg)
-                                nextst.add(to);
-                            continue;
-                        }
-                        case NFA.EDGE_CODEPOINT_LL: {
-                            char arg = (char)edgeInfo[i].arg_i;
-                            if (target.charAt((int)pos) == arg) {
-                                int fate = (edgeInfo[i].act >> 8) & 0xfffff;  /* act is probably signed 32 bits */
-                                nextst.add(to);
-                                while (usedlonglit <= fate)
-                                    longlit[usedlonglit++] = 0;
-                                longlit[fate] = pos - orig_pos;
-                            }
-                            continue;
-                        }
-                        case NFA.EDGE_CODEPOINT_NEG: {
-                            char arg = (char)edgeInfo[i].arg_i;
-                            if (target.charAt((int)pos) != arg)
-                                nextst.add(to);
-                            continue;
-                        }
-                        case NFA.EDGE_CHARCLASS: {
-                            if (iscclass(edgeInfo[i].arg_i, target, pos) != 0)
-                                nextst.add(to);
-                            continue;
-                        }
-                        case NFA.EDGE_CHARCLASS_NEG: {
-                            if (iscclass(edgeInfo[i].arg_i, target, pos) == 0)
-                                nextst.add(to);
-                            continue;
-                        }
-                        case NFA.EDGE_CHARLIST: {
-                            String arg = edgeInfo[i].arg_s;
-                            if (arg.indexOf(target.charAt((int)pos)) >= 0)
-                                nextst.add(to);
-                            continue;
-                        }
-                        case NFA.EDGE_CHARLIST_NEG: {
-                            String arg = edgeInfo[i].arg_s;
-                            if (arg.indexOf(target.charAt((int)pos)) < 0)
-                                nextst.add(to);
-                            continue;
-                        }
-                        case NFA.EDGE_CODEPOINT_I: {
-                            char uc_arg = edgeInfo[i].arg_uc;
-                            char lc_arg = edgeInfo[i].arg_lc;
-                            char ord = target.charAt((int)pos);
-                            if (ord == lc_arg || ord == uc_arg)
-                                nextst.add(to);
-                            continue;
-                        }
-                        case NFA.EDGE_CODEPOINT_I_LL: {
-                            char uc_arg = edgeInfo[i].arg_uc;
-                            char lc_arg = edgeInfo[i].arg_lc;
-                            char ord = target.charAt((int)pos);
-                            if (ord == lc_arg || ord == uc_arg) {
-                                int fate = (edgeInfo[i].act >> 8) & 0xfffff;  /* act is probably signed 32 bits */
-                                nextst.add(to);
-                                while (usedlonglit <= fate)
-                                    longlit[usedlonglit++] = 0;
-                                longlit[fate] = pos - orig_pos;
-                            }
-                            continue;
-                        }
-                        case NFA.EDGE_CODEPOINT_I_NEG: {
-                            char uc_arg = edgeInfo[i].arg_uc;
-                            char lc_arg = edgeInfo[i].arg_lc;
-                            char ord = target.charAt((int)pos);
-                            if (ord != lc_arg && ord != uc_arg)
-                                nextst.add(to);
-                            continue;
-                        }
-                        case NFA.EDGE_CHARRANGE: {
-                            char uc_arg = edgeInfo[i].arg_uc;
-                            char lc_arg = edgeInfo[i].arg_lc;
-                            char ord = target.charAt((int)pos);
-                            if (ord >= lc_arg && ord <= uc_arg)
-                                nextst.add(to);
-                            continue;
-                        }
-                        case NFA.EDGE_CHARRANGE_NEG: {
-                            char uc_arg = edgeInfo[i].arg_uc;
-                            char lc_arg = edgeInfo[i].arg_lc;
-                            char ord = target.charAt((int)pos);
-                            if (ord < lc_arg || ord > uc_arg)
-                                nextst.add(to);
-                            continue;
-                        }
-                    }
+    /* Crosses the edges out of an NFA state; ord is the char at the current
+     * offset, or -1 at the end of the string. */
+    private static void visitNFAState(NFARun run, NFAStateInfo[] edgeInfo, int ord) {
+        for (int i = 0; i < edgeInfo.length; i++) {
+            int act = edgeInfo[i].act;
+            int to  = edgeInfo[i].to;
+
+            if (act <= NFA.EDGE_EPSILON) {
+                if (act < 0) {
+                    act &= 0xff;
+                }
+                else if (act == NFA.EDGE_FATE) {
+                    /* Crossed a fate edge. */
+                    int arg = edgeInfo[i].arg_i;
+                    arg &= 0xffffff;   // can go away after reboostrap?
+                    run.fate(arg);
+                    continue;
+                }
+                else if (act == NFA.EDGE_EPSILON) {
+                    run.epsilon(to);
+                    continue;
                 }
             }
 
-            /* Move to next character and generation. */
-            pos++;
-            gen++;
-
-            /* If we got multiple fates at this offset, sort them by the
-             * declaration order (represented by the fate number). In the
-             * future, we'll want to factor in longest literal prefix too. */
-            int charFates = fates.size() - prevFates;
-            if (charFates > 1) {
-                List<Integer> charFateList = fates.subList(prevFates, fates.size());
-                Collections.sort(charFateList, Collections.reverseOrder());
+            if (ord < 0) {
+                /* Can't match, so drop state. */
+                continue;
             }
-        }
 
-        /* strip any literal lengths, leaving only fates */
-        int[] result = new int[fates.size()];
-        if (usedlonglit > 0) {
-            for (int i = 0; i < fates.size(); i++)
-                result[i] = fates.get(i) & 0xffffff;
-        }
-        else {
-            for (int i = 0; i < fates.size(); i++)
-                result[i] = fates.get(i);
+            switch (act) {
+                case NFA.EDGE_CODEPOINT: {
+                    char arg = (char)edgeInfo[i].arg_i;
+                    if (ord == arg)
+                        run.next(to);
+                    continue;
+                }
+                case NFA.EDGE_CODEPOINT_LL: {
+                    char arg = (char)edgeInfo[i].arg_i;
+                    if (ord == arg) {
+                        int fate = (edgeInfo[i].act >> 8) & 0xfffff;  /* act is probably signed 32 bits */
+                        run.next(to);
+                        run.longLit(fate);
+                    }
+                    continue;
+                }
+                case NFA.EDGE_CODEPOINT_NEG: {
+                    char arg = (char)edgeInfo[i].arg_i;
+                    if (ord != arg)
+                        run.next(to);
+                    continue;
+                }
+                case NFA.EDGE_CHARCLASS: {
+                    if (CharClassTable.matches(edgeInfo[i].arg_i, (char)ord))
+                        run.next(to);
+                    continue;
+                }
+                case NFA.EDGE_CHARCLASS_NEG: {
+                    if (!CharClassTable.matches(edgeInfo[i].arg_i, (char)ord))
+                        run.next(to);
+                    continue;
+                }
+                case NFA.EDGE_CHARLIST: {
+                    String arg = edgeInfo[i].arg_s;
+                    if (arg.indexOf(ord) >= 0)
+                        run.next(to);
+                    continue;
+                }
+                case NFA.EDGE_CHARLIST_NEG: {
+                    String arg = edgeInfo[i].arg_s;
+                    if (arg.indexOf(ord) < 0)
+                        run.next(to);
+                    continue;
+                }
+                case NFA.EDGE_CODEPOINT_I: {
+                    char uc_arg = edgeInfo[i].arg_uc;
+                    char lc_arg = edgeInfo[i].arg_lc;
+                    if (ord == lc_arg || ord == uc_arg)
+                        run.next(to);
+                    continue;
+                }
+                case NFA.EDGE_CODEPOINT_I_LL: {
+                    char uc_arg = edgeInfo[i].arg_uc;
+                    char lc_arg = edgeInfo[i].arg_lc;
+                    if (ord == lc_arg || ord == uc_arg) {
+                        int fate = (edgeInfo[i].act >> 8) & 0xfffff;  /* act is probably signed 32 bits */
+                        run.next(to);
+                        run.longLit(fate);
+                    }
+                    continue;
+                }
+                case NFA.EDGE_CODEPOINT_I_NEG: {
+                    char uc_arg = edgeInfo[i].arg_uc;
+                    char lc_arg = edgeInfo[i].arg_lc;
+                    if (ord != lc_arg && ord != uc_arg)
+                        run.next(to);
+                    continue;
+                }
+                case NFA.EDGE_CHARRANGE: {
+                    char uc_arg = edgeInfo[i].arg_uc;
+                    char lc_arg = edgeInfo[i].arg_lc;
+                    if (ord >= lc_arg && ord <= uc_arg)
+                        run.next(to);
+                    continue;
+                }
+                case NFA.EDGE_CHARRANGE_NEG: {
+                    char uc_arg = edgeInfo[i].arg_uc;
+                    char lc_arg = edgeInfo[i].arg_lc;
+                    if (ord < lc_arg || ord > uc_arg)
+                        run.next(to);
+                    continue;
+                }
+            }
         }
-        return result;
     }
 
     /* Regex engine mark stack operations. */
@@ -7276,6 +7312,7 @@ public final class Ops {
     }
 
     public static void continuationcontrol(long protect, SixModelObject key, SixModelObject run, ThreadContext tc) {
+        tc.curFrame.escape();
         throw new SaveStackException(key, protect != 0, run);
     }
 
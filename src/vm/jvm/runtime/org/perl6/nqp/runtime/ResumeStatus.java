@@ -47,7 +47,17 @@ public class ResumeStatus extends SixModelObject {
             if (callFrame != null) {
                 callFrame.tc = tc;
                 callFrame.caller = tc.curFrame;
+
+                /* The frame escaped when the continuation was taken, so its
+                 * new callers have too. */
+                if (tc.curFrame != null)
+                    tc.curFrame.escape();
                 callFrame.curHandler = curHandler;
+
+                /* The caller chain has changed, so any dynamic variable the
+                 * frame found before may not be the one visible any more. */
+                callFrame.dynlexName = null;
+                callFrame.dynlexFrame = null;
                 tc.curFrame = callFrame;
             }
             this.method.invokeExact(this);
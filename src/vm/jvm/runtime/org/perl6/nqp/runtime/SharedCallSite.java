@@ -0,0 +1,75 @@
+package org.perl6.nqp.runtime;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+/**
+ * A call site that is linked to what it resolved to once it's been called.
+ *
+ * The class of a compilation unit loaded in shared mode, and so its call
+ * sites, is shared by all GlobalContexts that load it, but what a site
+ * resolves to generally differs between them. In a shared unit, a site is
+ * therefore linked for one GlobalContext at a time: the target is guarded on
+ * the GlobalContext of the calling thread, and a call from any other falls
+ * back to the resolver, which links the site for that one instead. A site
+ * that keeps going back and forth between GlobalContexts is left unlinked
+ * after MAX_RELINKS, as relinking a hot site over and over costs far more than
+ * resolving it on every call.
+ */
+public class SharedCallSite extends MutableCallSite {
+    /* Number of times a site in a shared compilation unit is linked before it
+     * is given up on. */
+    public static final int MAX_RELINKS = Integer.getInteger("nqp.shared.relinks", 16);
+
+    private static final MethodHandle sameGlobalContext;
+    static {
+        try {
+            sameGlobalContext = MethodHandles.lookup().findStatic(SharedCallSite.class,
+                "sameGlobalContext", MethodType.methodType(boolean.class,
+                    GlobalContext.class, ThreadContext.class));
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* The target that resolves the site, so we can go back to it. */
+    private MethodHandle resolver;
+
+    /* Number of times the site has been linked. */
+    private int links;
+
+    public SharedCallSite(MethodType type) {
+        super(type);
+    }
+
+    /* Sets the resolver, which is also the initial target. */
+    public void setResolver(MethodHandle resolver) {
+        this.resolver = resolver;
+        setTarget(resolver);
+    }
+
+    /* Links the site to the target resolved by the given thread. The target
+     * must take the same arguments as the site, which for all sites we link
+     * start with a String, an int and the ThreadContext. */
+    public synchronized void link(MethodHandle target, ThreadContext tc, boolean shared) {
+        if (!shared) {
+            setTarget(target);
+        }
+        else if (links++ < MAX_RELINKS) {
+            MethodHandle test = MethodHandles.dropArguments(
+                MethodHandles.insertArguments(sameGlobalContext, 0, tc.gc),
+                0, String.class, int.class);
+            setTarget(MethodHandles.guardWithTest(test, target, resolver));
+        }
+        else {
+            setTarget(resolver);
+        }
+    }
+
+    public static boolean sameGlobalContext(GlobalContext gc, ThreadContext tc) {
+        return tc.gc == gc;
+    }
+}
@@ -4,6 +4,7 @@ import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.perl6.nqp.sixmodel.SixModelObject;
 
@@ -23,6 +24,12 @@ public class StaticCodeInfo implements Cloneable {
      */
     public short argsExpectation;
 
+    /**
+     * Binders for calling the code from call sites of a given shape (produced
+     * lazily by ArgsExpectation.binderFor).
+     */
+    volatile ConcurrentHashMap<CallSiteDescriptor, MethodHandle> binders;
+
     /**
      * Curried method handle for resuming.
      */
@@ -95,6 +102,13 @@ public class StaticCodeInfo implements Cloneable {
      */
     public boolean isThunk;
 
+    /**
+     * Can frames of this code object be recycled once they're left, provided
+     * they didn't escape? True if no other code has this as its outer, so
+     * nothing needs its prior invocation.
+     */
+    public boolean recyclable;
+
     public Integer oTryGetLexicalIdx(String name) {
         if (oLexicalNames != null) {
             if (oLexicalMap == null) {
@@ -206,6 +220,7 @@ public class StaticCodeInfo implements Cloneable {
     public StaticCodeInfo clone() {
         try {
             StaticCodeInfo result = (StaticCodeInfo)super.clone();
+            result.binders = null;
             if (result.oLexStatic != null) {
                 result.oLexStatic = result.oLexStatic.clone();
                 result.oLexStaticFlags = result.oLexStaticFlags.clone();
@@ -96,6 +96,13 @@ public class ThreadContext {
      */
     public CallFrame dummyCaller;
 
+    /**
+     * Frames of recyclable code that have been left without escaping, and
+     * can be reused for the next call to such code.
+     */
+    public CallFrame[] framePool = new CallFrame[CallFrame.POOL_SIZE];
+    public int framePoolSize;
+
     /**
      * Object with VMThread REPR used to represent this thread. May be null if we
      * never got around to setting it up yet.
@@ -113,8 +120,7 @@ public class ThreadContext {
     Random random;
 
     // odds and ends for nqp
-    ArrayList<Integer> fates = new ArrayList<Integer>(), curst = new ArrayList<Integer>(), nextst = new ArrayList<Integer>();
-    long[] curlonglit = new long[200];
+    NFARun nfarun = new NFARun();
 
     public ThreadContext(GlobalContext gc) {
         this.gc = gc;
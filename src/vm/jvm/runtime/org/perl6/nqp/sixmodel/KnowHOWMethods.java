@@ -11,6 +11,7 @@ import org.perl6.nqp.runtime.CallSiteDescriptor;
 import org.perl6.nqp.runtime.CodeRef;
 import org.perl6.nqp.runtime.CompilationUnit;
 import org.perl6.nqp.runtime.ExceptionHandling;
+import org.perl6.nqp.runtime.MethodLookupCache;
 import org.perl6.nqp.runtime.Ops;
 import org.perl6.nqp.runtime.ThreadContext;
 import org.perl6.nqp.sixmodel.reprs.KnowHOWAttributeInstance;
@@ -77,6 +78,10 @@ public class KnowHOWMethods extends CompilationUnit {
 
             ((KnowHOWREPRInstance)self).methods.put(name, method);
 
+            /* The methods may already be published as the method cache of
+             * some type, and we don't know which. */
+            MethodLookupCache.invalidateAll();
+
             Ops.return_o(method, cf);
         }
         finally {
@@ -123,6 +128,7 @@ public class KnowHOWMethods extends CompilationUnit {
 
             /* Set type check cache. */
             type_obj.st.TypeCheckCache = new SixModelObject[] { type_obj };
+            type_obj.st.invalidateCaches();
 
             /* Use any attribute information to produce attribute protocol
              * data. The protocol consists of an array... */
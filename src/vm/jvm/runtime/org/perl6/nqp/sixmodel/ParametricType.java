@@ -1,12 +1,135 @@
 package org.perl6.nqp.sixmodel;
 
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.perl6.nqp.runtime.ThreadContext;
 
 public final class ParametricType extends AbstractParametricity {
     /* The code object to use to produce a new parameterization. */
     public SixModelObject parameterizer;
 
-    /* Lookup table of existing parameterizations. */
-    public List<Map.Entry<SixModelObject, SixModelObject>> lookup;
+    /* Lookup table of existing parameterizations. Each value is either the
+     * parameterized type or, while a thread is producing it, a Pending. */
+    private final ConcurrentHashMap<Parameters, Object> lookup = new ConcurrentHashMap<Parameters, Object>();
+
+    /* A list of type parameters, compared by the identity of each one. */
+    public static final class Parameters {
+        private final SixModelObject[] params;
+        private final int hash;
+
+        public Parameters(SixModelObject params, ThreadContext tc) {
+            int elems = (int)params.elems(tc);
+            this.params = new SixModelObject[elems];
+            int hash = elems;
+            for (int i = 0; i < elems; i++) {
+                SixModelObject param = params.at_pos_boxed(tc, i);
+                this.params[i] = param;
+                hash = 31 * hash + System.identityHashCode(param);
+            }
+            this.hash = hash;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof Parameters))
+                return false;
+            SixModelObject[] otherParams = ((Parameters)other).params;
+            if (otherParams.length != params.length)
+                return false;
+            for (int i = 0; i < params.length; i++)
+                if (otherParams[i] != params[i])
+                    return false;
+            return true;
+        }
+
+        public String toString() {
+            return Arrays.toString(params);
+        }
+    }
+
+    /* Marks a parameterization that a thread is producing. */
+    private static final class Pending {
+        final Thread owner = Thread.currentThread();
+        boolean done;
+
+        synchronized void await() {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        synchronized void finish() {
+            done = true;
+            notifyAll();
+        }
+    }
+
+    /* Looks up an existing parameterization, or returns null if there isn't
+     * one yet. Doesn't block. */
+    public SixModelObject find(Parameters key) {
+        Object found = lookup.get(key);
+        return found instanceof SixModelObject ? (SixModelObject)found : null;
+    }
+
+    /* Looks up an existing parameterization. If there isn't one, returns null,
+     * and the calling thread is then responsible for producing it and calling
+     * either publish or abandon. If another thread is already producing it,
+     * waits for that instead. A thread that asks again for a parameterization
+     * it's producing is told to produce it again, rather than deadlocking. */
+    public SixModelObject claim(Parameters key) {
+        while (true) {
+            Object found = lookup.get(key);
+            if (found == null) {
+                found = lookup.putIfAbsent(key, new Pending());
+                if (found == null)
+                    return null;
+            }
+            if (found instanceof SixModelObject)
+                return (SixModelObject)found;
+            Pending pending = (Pending)found;
+            if (pending.owner == Thread.currentThread())
+                return null;
+            pending.await();
+        }
+    }
+
+    /* Adds a parameterization produced after a claim, waking any threads that
+     * are waiting for it. If the parameterization was meanwhile published (by
+     * a nested claim on the same thread), the first one stays. */
+    public void publish(Parameters key, SixModelObject type) {
+        while (true) {
+            Object found = lookup.get(key);
+            if (found instanceof SixModelObject)
+                return;
+            if (found == null) {
+                if (lookup.putIfAbsent(key, type) == null)
+                    return;
+            }
+            else if (lookup.replace(key, found, type)) {
+                ((Pending)found).finish();
+                return;
+            }
+        }
+    }
+
+    /* Gives up on producing a parameterization after a claim, so that the
+     * next thread to want it will try. */
+    public void abandon(Parameters key) {
+        Object found = lookup.get(key);
+        if (found instanceof Pending && ((Pending)found).owner == Thread.currentThread()
+                && lookup.remove(key, found))
+            ((Pending)found).finish();
+    }
 }
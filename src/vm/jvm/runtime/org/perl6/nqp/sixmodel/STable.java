@@ -1,5 +1,6 @@
 package org.perl6.nqp.sixmodel;
 
+import java.lang.invoke.SwitchPoint;
 import java.util.Map;
 
 import org.perl6.nqp.runtime.HLLConfig;
@@ -82,6 +83,43 @@ public class STable {
      */
     public Map<String, SixModelObject> MethodCache;
 
+    /**
+     * Bumped whenever the method cache is replaced, to invalidate any
+     * method lookups cached for this type.
+     */
+    public int methodCacheEpoch;
+
+    /**
+     * Switch point that call sites linked on the assumption that this type's
+     * method cache, type check cache and invocation spec stay the same guard
+     * on. Created on demand, and replaced with a fresh one on invalidation.
+     */
+    private SwitchPoint switchPoint;
+
+    /**
+     * Gets the switch point to guard on when linking against this type.
+     */
+    public synchronized SwitchPoint getSwitchPoint() {
+        if (switchPoint == null)
+            switchPoint = new SwitchPoint();
+        return switchPoint;
+    }
+
+    /**
+     * Invalidates everything cached about dispatch on this type. To be called
+     * after changing the method cache, type check cache or invocation spec.
+     */
+    public void invalidateCaches() {
+        SwitchPoint sp;
+        synchronized (this) {
+            methodCacheEpoch++;
+            sp = switchPoint;
+            switchPoint = null;
+        }
+        if (sp != null)
+            SwitchPoint.invalidateAll(new SwitchPoint[] { sp });
+    }
+
     /**
      * The computed v-table for static dispatch.
      */
@@ -94,6 +132,28 @@ public class STable {
      */
     public SixModelObject[] TypeCheckCache;
 
+    /**
+     * Hash set over the type check cache, built the first time a long cache
+     * is checked against and rebuilt if the cache is replaced.
+     */
+    private TypeCheckSet typeCheckSet;
+
+    /**
+     * Checks if a type check cache of this type contains the given type.
+     */
+    public boolean typeCheckCacheContains(SixModelObject[] cache, SixModelObject type) {
+        if (cache.length <= TypeCheckSet.SCAN_LIMIT) {
+            for (int i = 0; i < cache.length; i++)
+                if (cache[i] == type)
+                    return true;
+            return false;
+        }
+        TypeCheckSet set = typeCheckSet;
+        if (set == null || set.cache != cache)
+            typeCheckSet = set = new TypeCheckSet(cache);
+        return set.contains(type);
+    }
+
     /**
      * The type checking mode and method cache mode.
      */
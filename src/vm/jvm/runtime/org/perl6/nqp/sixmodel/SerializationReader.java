@@ -3,8 +3,6 @@ package org.perl6.nqp.sixmodel;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.Map;
 
 import org.perl6.nqp.runtime.CallFrame;
 import org.perl6.nqp.runtime.CodeRef;
@@ -463,6 +461,10 @@ public class SerializationReader {
                 }
             }
 
+            /* Anything linked against an earlier version of this type (for
+             * example, when repossessing it) is now stale. */
+            st.invalidateCaches();
+
             /* HLL stuff. */
             if (version >= 6) {
                 st.hllOwner = tc.gc.getHLLConfigFor(readStr());
@@ -476,7 +478,6 @@ public class SerializationReader {
                 if (paraFlag == 1) {
                     ParametricType pt = new ParametricType();
                     pt.parameterizer = readRef();
-                    pt.lookup = new ArrayList<Map.Entry<SixModelObject, SixModelObject>>();
                     st.parametricity = pt;
                 }
                 else if (paraFlag == 2) {
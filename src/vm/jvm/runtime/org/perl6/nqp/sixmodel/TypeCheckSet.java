@@ -0,0 +1,53 @@
+package org.perl6.nqp.sixmodel;
+
+/**
+ * An identity hash set over the type objects in a type check cache, so that
+ * checks against long caches (deep class hierarchies, many roles) don't have
+ * to scan the whole cache.
+ */
+public final class TypeCheckSet {
+    /* Caches up to this long are faster to just scan. */
+    public static final int SCAN_LIMIT = 8;
+
+    /* The type check cache this set was built from. */
+    final SixModelObject[] cache;
+
+    /* Open addressed table of the types, kept at most half full. */
+    private final SixModelObject[] slots;
+    private final int mask;
+
+    public TypeCheckSet(SixModelObject[] cache) {
+        int size = 16;
+        while (size < cache.length * 2)
+            size <<= 1;
+        this.cache = cache;
+        this.slots = new SixModelObject[size];
+        this.mask = size - 1;
+        for (SixModelObject type : cache) {
+            if (type == null)
+                continue;
+            int i = hash(type) & mask;
+            while (slots[i] != null && slots[i] != type)
+                i = (i + 1) & mask;
+            slots[i] = type;
+        }
+    }
+
+    public boolean contains(SixModelObject type) {
+        if (type == null)
+            return false;
+        int i = hash(type) & mask;
+        SixModelObject found;
+        while ((found = slots[i]) != null) {
+            if (found == type)
+                return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    private static int hash(SixModelObject type) {
+        int h = System.identityHashCode(type);
+        return h ^ (h >>> 16);
+    }
+}
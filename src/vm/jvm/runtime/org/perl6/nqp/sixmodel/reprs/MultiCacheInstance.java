@@ -1,169 +1,150 @@
 package org.perl6.nqp.sixmodel.reprs;
 
+import java.util.concurrent.ThreadLocalRandom;
+
 import org.perl6.nqp.runtime.CallSiteDescriptor;
 import org.perl6.nqp.runtime.Ops;
 import org.perl6.nqp.runtime.ThreadContext;
+import org.perl6.nqp.sixmodel.STable;
 import org.perl6.nqp.sixmodel.SixModelObject;
 import org.perl6.nqp.sixmodel.TypeObject;
 
 public class MultiCacheInstance extends SixModelObject {
-    private static final int MD_CACHE_MAX_ARITY = 4;
-    private static final int MD_CACHE_MAX_ENTRIES = 32;
+    private static final int MD_CACHE_MAX_ARITY = 8;
+    private static final int MD_CACHE_MAX_ENTRIES = 64;
     private static final int MD_CACHE_INT = 1;
     private static final int MD_CACHE_NUM = 2;
     private static final int MD_CACHE_STR = 3;
 
-    private SixModelObject zeroArity;
-    private ArityCache[] arityCaches = new ArityCache[MD_CACHE_MAX_ARITY];
+    /* Hash table size per arity; kept at least twice the number of entries,
+     * so probe sequences stay short and always end at an empty slot. */
+    private static final int MD_CACHE_SLOTS = MD_CACHE_MAX_ENTRIES * 2;
 
-    private class ArityCache
-    {
-        /* The number of entries we have in the cache. */
-        public int numEntries;
+    private volatile SixModelObject zeroArity;
+
+    /* The caches for each arity; index 0 is the cache for arity 1. Caches
+     * are never changed once published, so readers need no locking; writers
+     * build a new cache and publish a new array. */
+    private volatile ArityCache[] arityCaches = new ArityCache[MD_CACHE_MAX_ARITY];
 
-        /* This is a bunch of ST hashes, with natives special-cased. We allocate
-         * it arity * MAX_ENTRIES big and go through it in arity sized chunks. */
-        public long typeIds[];
+    /* The types of the positional arguments of a call, and whether it has
+     * named arguments. */
+    public static final class Key {
+        /* For each positional, its STable, or null if it's a native. */
+        public final STable[] types;
+
+        /* For each positional, the kind of native it is, or for objects
+         * whether it's concrete (1), in a rw container (2) and in a native
+         * container (4). */
+        public final int[] flags;
 
         /* Whether the entry is allowed to have named arguments. Doesn't say
          * anything about which ones, though. Something that is ambivalent
          * about named arguments to the degree it doesn't care about them
          * even tie-breaking (like NQP) can just throw such entries into the
          * cache. Things that do care should not make such cache entries. */
-        public boolean namedOK[];
+        public final boolean hasNamed;
+
+        public final int hash;
+
+        public Key(STable[] types, int[] flags, boolean hasNamed) {
+            this.types = types;
+            this.flags = flags;
+            this.hasNamed = hasNamed;
+            int hash = hasNamed ? 1 : 0;
+            for (int i = 0; i < types.length; i++)
+                hash = 31 * (31 * hash + System.identityHashCode(types[i])) + flags[i];
+            this.hash = hash ^ (hash >>> 16);
+        }
 
-        /* The results we return from the cache. */
-        public SixModelObject[] results;
+        public boolean matches(Key other) {
+            if (other.hash != hash || other.hasNamed != hasNamed)
+                return false;
+            for (int i = 0; i < types.length; i++)
+                if (other.types[i] != types[i] || other.flags[i] != flags[i])
+                    return false;
+            return true;
+        }
     }
 
-    public void add(CallCaptureInstance capture, SixModelObject result, ThreadContext tc) {
-        /* If there's flattenings, we can't cache. */
-        if (capture.descriptor.hasFlattening)
-            return;
+    private static class Entry {
+        public final Key key;
+        public final SixModelObject result;
 
-        Object[] args = capture.args;
-        /* If it's zero arity, just stick it in that slot. */
-        if (args.length == 0) {
-            this.zeroArity = result;
-            return;
+        public Entry(Key key, SixModelObject result) {
+            this.key = key;
+            this.result = result;
         }
+    }
 
-        /* Count number of positional args and build type tuple. */
-        int numArgs = 0;
+    private static class ArityCache {
+        /* Open addressed on the key hash, with linear probing. */
+        public final Entry[] slots = new Entry[MD_CACHE_SLOTS];
+
+        /* The number of entries we have in the cache. */
+        public int numEntries;
+
+        public SixModelObject lookup(Key key) {
+            int mask = slots.length - 1;
+            for (int i = key.hash & mask; slots[i] != null; i = (i + 1) & mask)
+                if (slots[i].key.matches(key))
+                    return slots[i].result;
+            return null;
+        }
+
+        /* Adds an entry; only for use while building a cache. */
+        public void insert(Entry entry) {
+            int mask = slots.length - 1;
+            int i = entry.key.hash & mask;
+            while (slots[i] != null)
+                i = (i + 1) & mask;
+            slots[i] = entry;
+            numEntries++;
+        }
+    }
+
+    /* Builds the key for a capture, or returns null if it can't be cached. */
+    public static Key keyFor(CallCaptureInstance capture, ThreadContext tc) {
+        /* If there's flattenings, we can't cache. */
+        if (capture.descriptor.hasFlattening)
+            return null;
+
+        /* Count number of positional args. */
         byte[] argFlags = capture.descriptor.argFlags;
-        long argTup[] = new long[MD_CACHE_MAX_ARITY];
-        boolean hasNamed = false;
+        int numArgs = 0;
         for (int i = 0; i < argFlags.length; i++) {
             switch (argFlags[i]) {
             case CallSiteDescriptor.ARG_INT:
-                if (numArgs >= MD_CACHE_MAX_ARITY)
-                    return;
-                argTup[numArgs++] = MD_CACHE_INT;
-                break;
             case CallSiteDescriptor.ARG_NUM:
-                if (numArgs >= MD_CACHE_MAX_ARITY)
-                    return;
-                argTup[numArgs++] = MD_CACHE_NUM;
-                break;
             case CallSiteDescriptor.ARG_STR:
-                if (numArgs >= MD_CACHE_MAX_ARITY)
-                    return;
-                argTup[numArgs++] = MD_CACHE_STR;
-                break;
             case CallSiteDescriptor.ARG_OBJ:
-                if (numArgs >= MD_CACHE_MAX_ARITY)
-                    return;
-                SixModelObject cont = (SixModelObject)args[i];
-                SixModelObject decont = Ops.decont(cont, tc);
-                long flag = ((long)decont.st.hashCode()) << 3;
-                if (Ops.iscont_i(cont) == 1 || Ops.iscont_n(cont) == 1 || Ops.iscont_s(cont) == 1) {
-                    flag |= 4;    /* Native ref vs. non-native ref */
-                    flag |= 2;    /* Native refs are always writable. */
-                }
-                else if (Ops.isrwcont(cont, tc) == 1)
-                    flag |= 2;
-                if (!(decont instanceof TypeObject))
-                    flag |= 1;
-                argTup[numArgs++] = flag;
-                break;
-            default:
-                if ((argFlags[i] & CallSiteDescriptor.ARG_FLAT) != 0)
-                    return;
-                hasNamed = true;
+                numArgs++;
             }
         }
-
-        /* Again, if it's zero arity, just stick it in that slot. */
-        if (numArgs == 0) {
-            this.zeroArity = result;
-            return;
-        }
-
-        /* If number of positional args exceeds arity limit, don't do anything. */
-        if (numArgs >= MD_CACHE_MAX_ARITY)
-            return;
-
-        /* The zero arity case was handled above.
-         * At index 0 we have the cache for arity 1 */
-        ArityCache ac = this.arityCaches[numArgs - 1];
-
-        /* If the cache is saturated, don't do anything (we could instead do a random
-         * replacement). */
-        if (ac != null && ac.numEntries == MD_CACHE_MAX_ENTRIES)
-            return;
-
-        /* If there's no entries yet, need to do some allocation. */
-        if (ac == null) {
-            ac = new ArityCache();
-            ac.typeIds = new long[numArgs * MD_CACHE_MAX_ENTRIES];
-            ac.namedOK = new boolean[MD_CACHE_MAX_ENTRIES];
-            ac.results = new SixModelObject[MD_CACHE_MAX_ENTRIES];
-            this.arityCaches[numArgs - 1] = ac;
-        }
-
-        /* Add entry. */
-        int insType = ac.numEntries * numArgs;
-        for (int i = 0; i < numArgs; i++)
-            ac.typeIds[insType + i] = argTup[i];
-        ac.results[ac.numEntries] = result;
-        ac.namedOK[ac.numEntries] = hasNamed;
-        ac.numEntries++;
-    }
-
-    public SixModelObject lookup(CallCaptureInstance capture, ThreadContext tc) {
-        /* If there's flattenings, we can't use the cache. */
-        if (capture.descriptor.hasFlattening)
+        if (numArgs > MD_CACHE_MAX_ARITY)
             return null;
 
-        /* Count number of positional args and build type tuple. */
-        int numArgs = 0;
+        /* Build type tuple. */
         Object[] args = capture.args;
-        byte[] argFlags = capture.descriptor.argFlags;
-        long argTup[] = new long[MD_CACHE_MAX_ARITY];
+        STable[] types = new STable[numArgs];
+        int[] flags = new int[numArgs];
         boolean hasNamed = false;
+        int pos = 0;
         for (int i = 0; i < argFlags.length; i++) {
             switch (argFlags[i]) {
             case CallSiteDescriptor.ARG_INT:
-                if (numArgs >= MD_CACHE_MAX_ARITY)
-                    return null;
-                argTup[numArgs++] = MD_CACHE_INT;
+                flags[pos++] = MD_CACHE_INT;
                 break;
             case CallSiteDescriptor.ARG_NUM:
-                if (numArgs >= MD_CACHE_MAX_ARITY)
-                    return null;
-                argTup[numArgs++] = MD_CACHE_NUM;
+                flags[pos++] = MD_CACHE_NUM;
                 break;
             case CallSiteDescriptor.ARG_STR:
-                if (numArgs >= MD_CACHE_MAX_ARITY)
-                    return null;
-                argTup[numArgs++] = MD_CACHE_STR;
+                flags[pos++] = MD_CACHE_STR;
                 break;
             case CallSiteDescriptor.ARG_OBJ:
-                if (numArgs >= MD_CACHE_MAX_ARITY)
-                    return null;
                 SixModelObject cont = (SixModelObject)args[i];
                 SixModelObject decont = Ops.decont(cont, tc);
-                long flag = ((long)decont.st.hashCode()) << 3;
+                int flag = 0;
                 if (Ops.iscont_i(cont) == 1 || Ops.iscont_n(cont) == 1 || Ops.iscont_s(cont) == 1) {
                     flag |= 4;    /* Native ref vs. non-native ref */
                     flag |= 2;    /* Native refs are always writable. */
@@ -172,7 +153,8 @@ public class MultiCacheInstance extends SixModelObject {
                     flag |= 2;
                 if (!(decont instanceof TypeObject))
                     flag |= 1;
-                argTup[numArgs++] = flag;
+                types[pos] = decont.st;
+                flags[pos++] = flag;
                 break;
             default:
                 if ((argFlags[i] & CallSiteDescriptor.ARG_FLAT) != 0)
@@ -181,30 +163,61 @@ public class MultiCacheInstance extends SixModelObject {
             }
         }
 
-        /* If it's zero-arity, return result right off. */
-        if (numArgs == 0)
-            return hasNamed ? null : this.zeroArity;
+        return new Key(types, flags, hasNamed);
+    }
 
-        /* Look through entries. */
-        ArityCache ac = this.arityCaches[numArgs - 1];
-        if (ac == null)
-            return null;
-        int tPos = 0;
-        for (int i = 0; i < ac.numEntries; i++) {
-            boolean match = true;
-            for (int j = 0; j < numArgs; j++) {
-                if (ac.typeIds[tPos + j] != argTup[j]) {
-                    match = false;
-                    break;
+    public void add(CallCaptureInstance capture, SixModelObject result, ThreadContext tc) {
+        Key key = keyFor(capture, tc);
+        if (key == null)
+            return;
+
+        /* If it's zero arity, just stick it in that slot. */
+        int numArgs = key.types.length;
+        if (numArgs == 0) {
+            this.zeroArity = result;
+            return;
+        }
+
+        synchronized (this) {
+            /* Copy the existing entries, leaving out any for the same key. If
+             * the cache is saturated, leave out a randomly chosen victim too. */
+            ArityCache[] caches = this.arityCaches;
+            ArityCache old = caches[numArgs - 1];
+            ArityCache ac = new ArityCache();
+            if (old != null) {
+                int victim = old.numEntries == MD_CACHE_MAX_ENTRIES
+                    ? ThreadLocalRandom.current().nextInt(old.numEntries)
+                    : -1;
+                int seen = 0;
+                for (Entry e : old.slots) {
+                    if (e == null)
+                        continue;
+                    if (seen++ != victim && !e.key.matches(key))
+                        ac.insert(e);
                 }
             }
-            if (match) {
-                if (hasNamed == ac.namedOK[i])
-                    return ac.results[i];
-            }
-            tPos += numArgs;
+
+            /* Add entry and publish. */
+            ac.insert(new Entry(key, result));
+            caches = caches.clone();
+            caches[numArgs - 1] = ac;
+            this.arityCaches = caches;
         }
+    }
+
+    public SixModelObject lookup(CallCaptureInstance capture, ThreadContext tc) {
+        Key key = keyFor(capture, tc);
+        return key == null ? null : lookup(key);
+    }
+
+    public SixModelObject lookup(Key key) {
+        /* If it's zero-arity, return result right off. */
+        int numArgs = key.types.length;
+        if (numArgs == 0)
+            return key.hasNamed ? null : this.zeroArity;
 
-        return null;
+        /* Look up entry. */
+        ArityCache ac = this.arityCaches[numArgs - 1];
+        return ac == null ? null : ac.lookup(key);
     }
 }
@@ -103,6 +103,38 @@ public class NFA extends REPR {
                 }
             }
         }
+
+        NFACache.intern(body);
+    }
+
+    /**
+     * Checks if an NFA is made up only of literals (chains of codepoint edges
+     * ending in fates), in which case it can be matched with a trie.
+     */
+    public static boolean isLiteral(NFAInstance body) {
+        if (body.numStates == 0)
+            return false;
+        for (int i = 0; i < body.numStates; i++) {
+            for (NFAStateInfo edge : body.states[i]) {
+                int act = edge.act;
+                if (act < 0)
+                    act &= 0xff;
+                else if (act > 0xff)
+                    return false;
+                switch (act) {
+                case EDGE_FATE:
+                case EDGE_EPSILON:
+                case EDGE_CODEPOINT:
+                case EDGE_CODEPOINT_LL:
+                case EDGE_CODEPOINT_I:
+                case EDGE_CODEPOINT_I_LL:
+                    break;
+                default:
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 
     public void serialize(ThreadContext tc, SerializationWriter writer, SixModelObject obj) {
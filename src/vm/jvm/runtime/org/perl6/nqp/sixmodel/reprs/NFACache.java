@@ -0,0 +1,106 @@
+package org.perl6.nqp.sixmodel.reprs;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A process-wide cache of NFA state tables, keyed on their contents. Every
+ * compilation unit, thread and EvalServer run that builds or deserializes an
+ * NFA identical to one we've seen before shares its state tables and DFA,
+ * and so also the DFA states, indexes and compiled matcher built for it as
+ * it warms up. All of these are immutable or safely built concurrently.
+ */
+public class NFACache {
+    /* Maximum number of distinct NFAs we keep; past this, new NFAs get a DFA
+     * of their own, as they did before this cache. */
+    public static final int MAX_ENTRIES = 8192;
+
+    private static final ConcurrentHashMap<Key, NFADFA> shared = new ConcurrentHashMap<Key, NFADFA>();
+
+    /* Wraps the state tables of an NFA, hashing and comparing them by their
+     * contents. */
+    private static class Key {
+        private final int numStates;
+        private final NFAStateInfo[][] states;
+        private final int hash;
+
+        Key(int numStates, NFAStateInfo[][] states) {
+            this.numStates = numStates;
+            this.states = states;
+            int hash = numStates;
+            for (int i = 0; i < numStates; i++) {
+                hash = 31 * hash + states[i].length;
+                for (NFAStateInfo edge : states[i])
+                    hash = 31 * hash + edgeHash(edge);
+            }
+            this.hash = hash;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof Key))
+                return false;
+            Key key = (Key)other;
+            if (key.hash != hash || key.numStates != numStates)
+                return false;
+            for (int i = 0; i < numStates; i++) {
+                NFAStateInfo[] a = states[i];
+                NFAStateInfo[] b = key.states[i];
+                if (a.length != b.length)
+                    return false;
+                for (int j = 0; j < a.length; j++)
+                    if (!edgeEquals(a[j], b[j]))
+                        return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Fills in the derived parts of an NFA whose states were just built or
+     * deserialized. If an identical NFA is already cached, the NFA takes its
+     * state tables and DFA in place of its own.
+     */
+    public static void intern(NFAInstance nfa) {
+        nfa.literal = NFA.isLiteral(nfa);
+        if (nfa.numStates == 0)
+            return;
+
+        Key key = new Key(nfa.numStates, nfa.states);
+        NFADFA dfa = shared.get(key);
+        if (dfa == null) {
+            /* Build the DFA over a copy holding only the states, so that the
+             * cache doesn't keep this NFA's fates or SC alive. */
+            NFAInstance template = new NFAInstance();
+            template.numStates = nfa.numStates;
+            template.states = nfa.states;
+            template.literal = nfa.literal;
+            dfa = new NFADFA(template);
+            if (shared.size() < MAX_ENTRIES) {
+                NFADFA existing = shared.putIfAbsent(key, dfa);
+                if (existing != null)
+                    dfa = existing;
+            }
+        }
+        nfa.states = dfa.nfa.states;
+        nfa.dfa = dfa;
+    }
+
+    private static int edgeHash(NFAStateInfo edge) {
+        int hash = edge.act;
+        hash = 31 * hash + edge.to;
+        hash = 31 * hash + edge.arg_i;
+        hash = 31 * hash + (edge.arg_s == null ? 0 : edge.arg_s.hashCode());
+        hash = 31 * hash + edge.arg_lc;
+        hash = 31 * hash + edge.arg_uc;
+        return hash;
+    }
+
+    private static boolean edgeEquals(NFAStateInfo a, NFAStateInfo b) {
+        return a.act == b.act && a.to == b.to && a.arg_i == b.arg_i &&
+            a.arg_lc == b.arg_lc && a.arg_uc == b.arg_uc &&
+            (a.arg_s == null ? b.arg_s == null : a.arg_s.equals(b.arg_s));
+    }
+}
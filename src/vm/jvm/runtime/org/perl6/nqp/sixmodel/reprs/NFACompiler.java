@@ -0,0 +1,219 @@
+package org.perl6.nqp.sixmodel.reprs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.perl6.nqp.runtime.CharClassTable;
+import org.perl6.nqp.runtime.ThreadContext;
+
+/**
+ * Compiles an NFA into a JVM class whose visit method switches on the state
+ * and then tests each of its edges against the current char with constants
+ * baked in, rather than walking the NFAStateInfo graph. HotSpot can then
+ * optimize each NFA's matcher on its own.
+ */
+public class NFACompiler {
+    /* Number of times an NFA must be simulated before we compile it. */
+    public static final int COMPILE_THRESHOLD = 64;
+
+    /* We don't compile NFAs whose visit method might not fit in the 64K
+     * the JVM allows per method. */
+    private static final int MAX_CODE_SIZE = 60000;
+    private static final int MAX_EDGE_SIZE = 32;
+
+    private static final String RUN = "org/perl6/nqp/runtime/NFARun";
+
+    private static final AtomicInteger matcherId = new AtomicInteger();
+
+    /**
+     * Compiles the NFA; returns null if it is too big to compile.
+     */
+    public static NFAMatcher compile(ThreadContext tc, NFAInstance nfa) {
+        int numStates = nfa.numStates;
+        if (numStates == 0)
+            return null;
+        long size = 16 + 4L * numStates;
+        for (int i = 0; i < numStates; i++)
+            size += 1 + MAX_EDGE_SIZE * nfa.states[i].length;
+        if (size > MAX_CODE_SIZE)
+            return null;
+
+        String className = "__NFAMatcher__" + matcherId.getAndIncrement();
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+        cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC + Opcodes.ACC_SUPER + Opcodes.ACC_FINAL, className, null,
+                "org/perl6/nqp/sixmodel/reprs/NFAMatcher", null);
+
+        MethodVisitor constructor = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        constructor.visitCode();
+        constructor.visitVarInsn(Opcodes.ALOAD, 0);
+        constructor.visitMethodInsn(Opcodes.INVOKESPECIAL,
+                "org/perl6/nqp/sixmodel/reprs/NFAMatcher", "<init>", "()V");
+        constructor.visitInsn(Opcodes.RETURN);
+        constructor.visitMaxs(1, 1);
+        constructor.visitEnd();
+
+        /* public void visit(NFARun run, int st, int ord) */
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "visit",
+                "(L" + RUN + ";II)V", null, null);
+        mv.visitCode();
+        Label done = new Label();
+        Label[] stateLabels = new Label[numStates];
+        for (int i = 0; i < numStates; i++)
+            stateLabels[i] = new Label();
+        mv.visitVarInsn(Opcodes.ILOAD, 2);
+        mv.visitTableSwitchInsn(1, numStates, done, stateLabels);
+        for (int i = 0; i < numStates; i++) {
+            mv.visitLabel(stateLabels[i]);
+            for (NFAStateInfo edge : nfa.states[i])
+                compileEdge(mv, edge);
+            mv.visitInsn(Opcodes.RETURN);
+        }
+        mv.visitLabel(done);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+
+        byte[] classCompiled = cw.toByteArray();
+        if (System.getenv("NQP_DEBUG_DUMP_CLASSFILES") != null) {
+            try {
+                FileOutputStream fos = new FileOutputStream(new File(className + ".class"));
+                fos.write(classCompiled);
+                fos.close();
+            } catch (IOException e) {
+            }
+        }
+        try {
+            return (NFAMatcher)tc.gc.byteClassLoader.defineClass(className, classCompiled)
+                .getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* Emits code for an edge, mirroring what the NFA evaluator does. Locals
+     * are 1 = the NFARun, 2 = the state, 3 = the current char (or -1). */
+    private static void compileEdge(MethodVisitor mv, NFAStateInfo edge) {
+        int act = edge.act;
+        if (act <= NFA.EDGE_EPSILON) {
+            if (act < 0) {
+                act &= 0xff;
+            }
+            else if (act == NFA.EDGE_FATE) {
+                callRun(mv, "fate", edge.arg_i & 0xffffff);
+                return;
+            }
+            else if (act == NFA.EDGE_EPSILON) {
+                callRun(mv, "epsilon", edge.to);
+                return;
+            }
+        }
+
+        switch (act) {
+            case NFA.EDGE_CODEPOINT:
+            case NFA.EDGE_CODEPOINT_LL:
+            case NFA.EDGE_CODEPOINT_NEG:
+            case NFA.EDGE_CHARCLASS:
+            case NFA.EDGE_CHARCLASS_NEG:
+            case NFA.EDGE_CHARLIST:
+            case NFA.EDGE_CHARLIST_NEG:
+            case NFA.EDGE_CODEPOINT_I:
+            case NFA.EDGE_CODEPOINT_I_LL:
+            case NFA.EDGE_CODEPOINT_I_NEG:
+            case NFA.EDGE_CHARRANGE:
+            case NFA.EDGE_CHARRANGE_NEG:
+                break;
+            default:
+                /* The evaluator ignores anything else. */
+                return;
+        }
+
+        /* Can't match at the end of the target. */
+        Label skip = new Label();
+        Label hit = new Label();
+        mv.visitVarInsn(Opcodes.ILOAD, 3);
+        mv.visitJumpInsn(Opcodes.IFLT, skip);
+
+        switch (act) {
+            case NFA.EDGE_CODEPOINT:
+            case NFA.EDGE_CODEPOINT_LL:
+                compareOrd(mv, edge.arg_i & 0xffff, Opcodes.IF_ICMPNE, skip);
+                break;
+            case NFA.EDGE_CODEPOINT_NEG:
+                compareOrd(mv, edge.arg_i & 0xffff, Opcodes.IF_ICMPEQ, skip);
+                break;
+            case NFA.EDGE_CHARCLASS:
+            case NFA.EDGE_CHARCLASS_NEG:
+                /* Look up the class's bit now, so only the table is left. */
+                pushInt(mv, CharClassTable.bitFor(edge.arg_i));
+                mv.visitVarInsn(Opcodes.ILOAD, 3);
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/perl6/nqp/runtime/CharClassTable",
+                        "isIn", "(IC)Z");
+                mv.visitJumpInsn(act == NFA.EDGE_CHARCLASS ? Opcodes.IFEQ : Opcodes.IFNE, skip);
+                break;
+            case NFA.EDGE_CHARLIST:
+            case NFA.EDGE_CHARLIST_NEG:
+                mv.visitLdcInsn(edge.arg_s);
+                mv.visitVarInsn(Opcodes.ILOAD, 3);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "indexOf", "(I)I");
+                mv.visitJumpInsn(act == NFA.EDGE_CHARLIST ? Opcodes.IFLT : Opcodes.IFGE, skip);
+                break;
+            case NFA.EDGE_CODEPOINT_I:
+            case NFA.EDGE_CODEPOINT_I_LL:
+                compareOrd(mv, edge.arg_lc, Opcodes.IF_ICMPEQ, hit);
+                compareOrd(mv, edge.arg_uc, Opcodes.IF_ICMPNE, skip);
+                break;
+            case NFA.EDGE_CODEPOINT_I_NEG:
+                compareOrd(mv, edge.arg_lc, Opcodes.IF_ICMPEQ, skip);
+                compareOrd(mv, edge.arg_uc, Opcodes.IF_ICMPEQ, skip);
+                break;
+            case NFA.EDGE_CHARRANGE:
+                compareOrd(mv, edge.arg_lc, Opcodes.IF_ICMPLT, skip);
+                compareOrd(mv, edge.arg_uc, Opcodes.IF_ICMPGT, skip);
+                break;
+            case NFA.EDGE_CHARRANGE_NEG:
+                compareOrd(mv, edge.arg_lc, Opcodes.IF_ICMPLT, hit);
+                compareOrd(mv, edge.arg_uc, Opcodes.IF_ICMPLE, skip);
+                break;
+        }
+
+        mv.visitLabel(hit);
+        callRun(mv, "next", edge.to);
+        if (act == NFA.EDGE_CODEPOINT_LL || act == NFA.EDGE_CODEPOINT_I_LL)
+            callRun(mv, "longLit", (edge.act >> 8) & 0xfffff);
+        mv.visitLabel(skip);
+    }
+
+    /* Compares the current char with a constant, jumping to the label if the
+     * comparison holds. */
+    private static void compareOrd(MethodVisitor mv, int value, int jump, Label label) {
+        mv.visitVarInsn(Opcodes.ILOAD, 3);
+        pushInt(mv, value);
+        mv.visitJumpInsn(jump, label);
+    }
+
+    private static void callRun(MethodVisitor mv, String method, int arg) {
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        pushInt(mv, arg);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, RUN, method, "(I)V");
+    }
+
+    private static void pushInt(MethodVisitor mv, int value) {
+        if (value >= -1 && value <= 5)
+            mv.visitInsn(Opcodes.ICONST_0 + value);
+        else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+            mv.visitIntInsn(Opcodes.BIPUSH, value);
+        else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+            mv.visitIntInsn(Opcodes.SIPUSH, value);
+        else
+            mv.visitLdcInsn(value);
+    }
+}
@@ -0,0 +1,494 @@
+package org.perl6.nqp.sixmodel.reprs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.perl6.nqp.runtime.CharClassTable;
+import org.perl6.nqp.runtime.NFARun;
+
+/**
+ * A lazily built DFA over the states of an NFA. Each distinct list of states
+ * that the NFA evaluator can start an offset with becomes a DFA state; the
+ * fates crossed in its epsilon closure are worked out once, and transitions
+ * are memoized per input char as they are first needed. The number of DFA
+ * states is bounded; once the bound is reached, lookups that would need a new
+ * state fail and the caller falls back to simulating the NFA.
+ *
+ * The start state also gets an index from first char to the edges that char
+ * lets us cross (a table for Latin-1, and a bounded map built as we go for
+ * anything else), so we can tell right away when nothing can match.
+ *
+ * If the NFA is made up only of literals, its DFA is a trie of them; in that
+ * case we build it completely up front, keeping the transitions of each state
+ * as a sorted array of chars to binary search, and never fall back.
+ *
+ * Identical NFAs share a single DFA; see NFACache.
+ */
+public class NFADFA {
+    /* Maximum number of DFA states we will build for a single NFA. */
+    public static final int MAX_STATES = 256;
+
+    /* Maximum number of states in the trie for a literal-only NFA. */
+    public static final int MAX_TRIE_STATES = 4096;
+
+    /* Maximum number of memoized transitions on chars outside of Latin-1
+     * per DFA state. */
+    public static final int MAX_WIDE_TRANSITIONS = 64;
+
+    private static final int[] NO_INTS = new int[0];
+
+    /* Transition for when no NFA states remain and nothing else happened. */
+    private static final Transition NO_TRANSITION = new Transition(null, NO_INTS, NO_INTS);
+
+    /* The NFA we were built from. */
+    final NFAInstance nfa;
+
+    /* DFA states we've built so far, keyed on their NFA state list. */
+    private final ConcurrentHashMap<Key, State> built = new ConcurrentHashMap<Key, State>();
+
+    /* The DFA state we start in; null if the NFA has no states. */
+    public final State start;
+
+    /* Number of times we had to simulate the NFA rather than use the DFA,
+     * and the compiled matcher we build once that happens often enough. */
+    public int simulations;
+    public volatile NFAMatcher matcher;
+
+    public NFADFA(NFAInstance nfa) {
+        this.nfa = nfa;
+        this.start = nfa.numStates > 0 ? stateFor(new int[] { 1 }, MAX_STATES) : null;
+        if (start != null) {
+            indexFirstChars(start);
+            if (nfa.literal)
+                buildTrie();
+        }
+    }
+
+    public static class State {
+        /* Fates crossed at the offset this state is current for, in the
+         * order the NFA evaluator would cross them. */
+        public final int[] fates;
+
+        /* Edges that consume a char, along with their (masked) actions and
+         * the number of fates crossed before the evaluator reaches them. */
+        private final NFAStateInfo[] edges;
+        private final int[] acts;
+        private final int[] fatesBefore;
+
+        /* Memoized transitions. */
+        private Transition[] latin1;
+        private volatile ConcurrentHashMap<Character, Transition> wide;
+
+        /* For trie states, all the transitions, sorted by char. */
+        private char[] trieChars;
+        private Transition[] trieNext;
+
+        /* For the start state, the edges each char lets us cross. */
+        private int[][] firstEdges;
+        private volatile ConcurrentHashMap<Character, int[]> wideFirstEdges;
+
+        private State(int[] fates, NFAStateInfo[] edges, int[] acts, int[] fatesBefore) {
+            this.fates = fates;
+            this.edges = edges;
+            this.acts = acts;
+            this.fatesBefore = fatesBefore;
+        }
+    }
+
+    public static class Transition {
+        /* The state we move to; null if no NFA states remain. */
+        public final State target;
+
+        /* Fates of longest literal edges passed along the way, and for each
+         * of them how many of the source state's fates get crossed first. */
+        public final int[] longLits;
+        public final int[] longLitsAt;
+
+        private Transition(State target, int[] longLits, int[] longLitsAt) {
+            this.target = target;
+            this.longLits = longLits;
+            this.longLitsAt = longLitsAt;
+        }
+    }
+
+    private static class Key {
+        private final int[] states;
+        private final int hash;
+
+        Key(int[] states) {
+            this.states = states;
+            this.hash = Arrays.hashCode(states);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object other) {
+            return other instanceof Key && Arrays.equals(states, ((Key)other).states);
+        }
+    }
+
+    /**
+     * Gets the transition out of the specified state on the char at offset
+     * pos of the target, computing and memoizing it if needed. Returns null
+     * if the DFA is full and the transition leads to a state not yet built.
+     */
+    public Transition transition(State from, String target, int pos) {
+        char ord = target.charAt(pos);
+        char[] trieChars = from.trieChars;
+        if (trieChars != null) {
+            int i = Arrays.binarySearch(trieChars, ord);
+            return i >= 0 ? from.trieNext[i] : NO_TRANSITION;
+        }
+        if (ord < 256) {
+            Transition[] latin1 = from.latin1;
+            Transition t = latin1 == null ? null : latin1[ord];
+            if (t == null) {
+                t = computeTransition(from, target, pos, MAX_STATES);
+                if (t != null) {
+                    if (latin1 == null)
+                        from.latin1 = latin1 = new Transition[256];
+                    latin1[ord] = t;
+                }
+            }
+            return t;
+        }
+        else {
+            ConcurrentHashMap<Character, Transition> wide = from.wide;
+            Transition t = wide == null ? null : wide.get(ord);
+            if (t == null) {
+                t = computeTransition(from, target, pos, MAX_STATES);
+                if (t != null) {
+                    if (wide == null)
+                        from.wide = wide = new ConcurrentHashMap<Character, Transition>();
+                    if (wide.size() < MAX_WIDE_TRANSITIONS)
+                        wide.put(ord, t);
+                }
+            }
+            return t;
+        }
+    }
+
+    /**
+     * Checks if nothing can match at offset pos of the target, meaning there
+     * are no fates in the start state and no edge out of it we can cross.
+     */
+    public boolean cannotMatch(String target, long pos) {
+        if (start == null || start.fates.length != 0 || pos < 0)
+            return false;
+        return pos >= target.length() || firingEdges(start, target, (int)pos).length == 0;
+    }
+
+    /**
+     * Takes the first step of an NFA run from the start state, crossing its
+     * fates and only those edges that the first char lets us cross.
+     */
+    public void firstStep(NFARun run) {
+        State from = start;
+        String target = run.target;
+        int[] fired = run.pos < target.length()
+            ? firingEdges(from, target, (int)run.pos)
+            : NO_INTS;
+        int[] fates = from.fates;
+        int f = 0;
+        for (int k = 0; k < fired.length; k++) {
+            int i = fired[k];
+            while (f < from.fatesBefore[i])
+                run.fate(fates[f++]);
+            NFAStateInfo edge = from.edges[i];
+            run.next(edge.to);
+            if (isLongLit(from.acts[i]))
+                run.longLit((edge.act >> 8) & 0xfffff);
+        }
+        while (f < fates.length)
+            run.fate(fates[f++]);
+    }
+
+    private Transition computeTransition(State from, String target, int pos, int maxStates) {
+        int[] fired = firingEdges(from, target, pos);
+        NFAStateInfo[] edges = from.edges;
+        int[] next = new int[fired.length];
+        int[] longLits = NO_INTS;
+        int[] longLitsAt = NO_INTS;
+        int numLongLits = 0;
+        for (int k = 0; k < fired.length; k++) {
+            int i = fired[k];
+            NFAStateInfo edge = edges[i];
+            next[k] = edge.to;
+            if (isLongLit(from.acts[i])) {
+                if (numLongLits == longLits.length) {
+                    longLits = Arrays.copyOf(longLits, numLongLits + 4);
+                    longLitsAt = Arrays.copyOf(longLitsAt, numLongLits + 4);
+                }
+                longLits[numLongLits] = (edge.act >> 8) & 0xfffff;
+                longLitsAt[numLongLits] = from.fatesBefore[i];
+                numLongLits++;
+            }
+        }
+
+        State to = null;
+        if (next.length > 0) {
+            to = stateFor(canonicalize(next, next.length), maxStates);
+            if (to == null)
+                return null;
+        }
+        return new Transition(to,
+            numLongLits == longLits.length ? longLits : Arrays.copyOf(longLits, numLongLits),
+            numLongLits == longLitsAt.length ? longLitsAt : Arrays.copyOf(longLitsAt, numLongLits));
+    }
+
+    private static boolean isLongLit(int act) {
+        return act == NFA.EDGE_CODEPOINT_LL || act == NFA.EDGE_CODEPOINT_I_LL;
+    }
+
+    /* Gets the indexes of the edges out of a state that the char at offset
+     * pos of the target lets us cross, using the first char index if the
+     * state has one. */
+    private static int[] firingEdges(State from, String target, int pos) {
+        if (from.firstEdges == null)
+            return matchEdges(from, target, pos);
+
+        char ord = target.charAt(pos);
+        if (ord < 256)
+            return from.firstEdges[ord];
+        ConcurrentHashMap<Character, int[]> wide = from.wideFirstEdges;
+        int[] fired = wide == null ? null : wide.get(ord);
+        if (fired == null) {
+            fired = matchEdges(from, target, pos);
+            if (wide == null)
+                from.wideFirstEdges = wide = new ConcurrentHashMap<Character, int[]>();
+            if (wide.size() < MAX_WIDE_TRANSITIONS)
+                wide.put(ord, fired);
+        }
+        return fired;
+    }
+
+    /* Builds the first char index of Latin-1 chars for a state. */
+    private static void indexFirstChars(State state) {
+        int[][] firstEdges = new int[256][];
+        for (int ord = 0; ord < 256; ord++)
+            firstEdges[ord] = matchEdges(state, String.valueOf((char)ord), 0);
+        state.firstEdges = firstEdges;
+    }
+
+    /* Tests each of the edges out of a state against the char at offset pos
+     * of the target, returning the indexes of those we can cross. */
+    private static int[] matchEdges(State from, String target, int pos) {
+        char ord = target.charAt(pos);
+        NFAStateInfo[] edges = from.edges;
+        int[] acts = from.acts;
+        int[] fired = new int[edges.length];
+        int numFired = 0;
+        for (int i = 0; i < edges.length; i++) {
+            NFAStateInfo edge = edges[i];
+            boolean matched = false;
+            switch (acts[i]) {
+                case NFA.EDGE_CODEPOINT:
+                case NFA.EDGE_CODEPOINT_LL:
+                    matched = ord == (char)edge.arg_i;
+                    break;
+                case NFA.EDGE_CODEPOINT_NEG:
+                    matched = ord != (char)edge.arg_i;
+                    break;
+                case NFA.EDGE_CHARCLASS:
+                    matched = CharClassTable.matches(edge.arg_i, ord);
+                    break;
+                case NFA.EDGE_CHARCLASS_NEG:
+                    matched = !CharClassTable.matches(edge.arg_i, ord);
+                    break;
+                case NFA.EDGE_CHARLIST:
+                    matched = edge.arg_s.indexOf(ord) >= 0;
+                    break;
+                case NFA.EDGE_CHARLIST_NEG:
+                    matched = edge.arg_s.indexOf(ord) < 0;
+                    break;
+                case NFA.EDGE_CODEPOINT_I:
+                case NFA.EDGE_CODEPOINT_I_LL:
+                    matched = ord == edge.arg_lc || ord == edge.arg_uc;
+                    break;
+                case NFA.EDGE_CODEPOINT_I_NEG:
+                    matched = ord != edge.arg_lc && ord != edge.arg_uc;
+                    break;
+                case NFA.EDGE_CHARRANGE:
+                    matched = ord >= edge.arg_lc && ord <= edge.arg_uc;
+                    break;
+                case NFA.EDGE_CHARRANGE_NEG:
+                    matched = ord < edge.arg_lc || ord > edge.arg_uc;
+                    break;
+            }
+            if (matched)
+                fired[numFired++] = i;
+        }
+        if (numFired == 0)
+            return NO_INTS;
+        return numFired == fired.length ? fired : Arrays.copyOf(fired, numFired);
+    }
+
+    /* Builds the complete trie for a literal-only NFA. If it gets too big,
+     * we throw it away and carry on building the DFA lazily instead. */
+    private void buildTrie() {
+        IdentityHashMap<State, Transition[]> trie = new IdentityHashMap<State, Transition[]>();
+        IdentityHashMap<State, char[]> trieChars = new IdentityHashMap<State, char[]>();
+        ArrayList<State> todo = new ArrayList<State>();
+        todo.add(start);
+        while (!todo.isEmpty()) {
+            State state = todo.remove(todo.size() - 1);
+            if (trie.containsKey(state))
+                continue;
+
+            /* Any char not on one of the literal edges takes us nowhere. */
+            TreeSet<Character> charSet = new TreeSet<Character>();
+            for (int k = 0; k < state.edges.length; k++) {
+                NFAStateInfo edge = state.edges[k];
+                switch (state.acts[k]) {
+                    case NFA.EDGE_CODEPOINT:
+                    case NFA.EDGE_CODEPOINT_LL:
+                        charSet.add((char)edge.arg_i);
+                        break;
+                    default:
+                        charSet.add(edge.arg_lc);
+                        charSet.add(edge.arg_uc);
+                        break;
+                }
+            }
+            char[] chars = new char[charSet.size()];
+            Transition[] next = new Transition[chars.length];
+            int i = 0;
+            for (char ord : charSet) {
+                Transition t = computeTransition(state, String.valueOf(ord), 0, MAX_TRIE_STATES);
+                if (t == null) {
+                    built.clear();
+                    built.put(new Key(new int[] { 1 }), start);
+                    return;
+                }
+                chars[i] = ord;
+                next[i] = t;
+                i++;
+                if (t.target != null)
+                    todo.add(t.target);
+            }
+            trie.put(state, next);
+            trieChars.put(state, chars);
+        }
+
+        for (State state : trie.keySet()) {
+            state.trieNext = trie.get(state);
+            state.trieChars = trieChars.get(state);
+        }
+    }
+
+    /* The evaluator treats its state list as a stack, so when a state shows
+     * up more than once only the last occurrence is ever visited. Dropping
+     * the others lets equivalent lists share a DFA state. */
+    private static int[] canonicalize(int[] states, int num) {
+        int[] result = new int[num];
+        int kept = num;
+        for (int i = num - 1; i >= 0; i--) {
+            int st = states[i];
+            boolean seen = false;
+            for (int j = kept; j < num; j++) {
+                if (result[j] == st) {
+                    seen = true;
+                    break;
+                }
+            }
+            if (!seen)
+                result[--kept] = st;
+        }
+        return kept == 0 ? result : Arrays.copyOfRange(result, kept, num);
+    }
+
+    /* Finds or builds the DFA state for a (canonical) NFA state list. */
+    private State stateFor(int[] states, int maxStates) {
+        Key key = new Key(states);
+        State state = built.get(key);
+        if (state == null) {
+            if (built.size() >= maxStates)
+                return null;
+            state = buildState(states);
+            State existing = built.putIfAbsent(key, state);
+            if (existing != null)
+                state = existing;
+        }
+        return state;
+    }
+
+    /* Walks the epsilon closure of a state list exactly as the evaluator
+     * does, recording the fates crossed and the char-consuming edges seen. */
+    private State buildState(int[] states) {
+        int numStates = nfa.numStates;
+        boolean[] done = new boolean[numStates + 1];
+        ArrayList<Integer> stack = new ArrayList<Integer>();
+        for (int st : states)
+            stack.add(st);
+
+        ArrayList<Integer> fates = new ArrayList<Integer>();
+        ArrayList<NFAStateInfo> edges = new ArrayList<NFAStateInfo>();
+        ArrayList<Integer> acts = new ArrayList<Integer>();
+        ArrayList<Integer> fatesBefore = new ArrayList<Integer>();
+        while (!stack.isEmpty()) {
+            int st = stack.remove(stack.size() - 1);
+            if (st <= numStates) {
+                if (done[st])
+                    continue;
+                done[st] = true;
+            }
+
+            NFAStateInfo[] edgeInfo = nfa.states[st - 1];
+            for (int i = 0; i < edgeInfo.length; i++) {
+                int act = edgeInfo[i].act;
+                int to  = edgeInfo[i].to;
+
+                if (act <= NFA.EDGE_EPSILON) {
+                    if (act < 0) {
+                        act &= 0xff;
+                    }
+                    else if (act == NFA.EDGE_FATE) {
+                        fates.add(edgeInfo[i].arg_i & 0xffffff);
+                        continue;
+                    }
+                    else if (act == NFA.EDGE_EPSILON && to <= numStates && !done[to]) {
+                        if (to != 0)
+                            stack.add(to);
+                        continue;
+                    }
+                }
+
+                switch (act) {
+                    case NFA.EDGE_CODEPOINT:
+                    case NFA.EDGE_CODEPOINT_LL:
+                    case NFA.EDGE_CODEPOINT_NEG:
+                    case NFA.EDGE_CHARCLASS:
+                    case NFA.EDGE_CHARCLASS_NEG:
+                    case NFA.EDGE_CHARLIST:
+                    case NFA.EDGE_CHARLIST_NEG:
+                    case NFA.EDGE_CODEPOINT_I:
+                    case NFA.EDGE_CODEPOINT_I_LL:
+                    case NFA.EDGE_CODEPOINT_I_NEG:
+                    case NFA.EDGE_CHARRANGE:
+                    case NFA.EDGE_CHARRANGE_NEG:
+                        edges.add(edgeInfo[i]);
+                        acts.add(act);
+                        fatesBefore.add(fates.size());
+                        break;
+                }
+            }
+        }
+
+        return new State(toInts(fates), edges.toArray(new NFAStateInfo[edges.size()]),
+            toInts(acts), toInts(fatesBefore));
+    }
+
+    private static int[] toInts(ArrayList<Integer> list) {
+        if (list.isEmpty())
+            return NO_INTS;
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = list.get(i);
+        return result;
+    }
+}
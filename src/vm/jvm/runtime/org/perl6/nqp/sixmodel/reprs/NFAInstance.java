@@ -1,9 +1,20 @@
 package org.perl6.nqp.sixmodel.reprs;
 
+import org.perl6.nqp.runtime.NFAStats;
 import org.perl6.nqp.sixmodel.SixModelObject;
 
 public class NFAInstance extends SixModelObject {
     public SixModelObject fates;
     public int numStates;
     public NFAStateInfo[][] states;
+
+    /* Whether the NFA is made up only of literals; see NFA.isLiteral. */
+    public boolean literal;
+
+    /* DFA over the states, shared with any identical NFAs; see NFADFA and
+     * NFACache. */
+    public NFADFA dfa;
+
+    /* Matching statistics, if we're gathering them; see NFAStats. */
+    public NFAStats stats;
 }
@@ -0,0 +1,14 @@
+package org.perl6.nqp.sixmodel.reprs;
+
+import org.perl6.nqp.runtime.NFARun;
+
+/**
+ * Base class for NFA matchers compiled to JVM bytecode by NFACompiler.
+ */
+public abstract class NFAMatcher {
+    /**
+     * Crosses the edges out of the specified state; ord is the char at the
+     * current offset, or -1 at the end of the target.
+     */
+    public abstract void visit(NFARun run, int st, int ord);
+}
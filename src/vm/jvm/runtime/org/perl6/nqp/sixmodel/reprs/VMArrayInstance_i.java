@@ -128,6 +128,23 @@ public class VMArrayInstance_i extends VMArrayInstanceBase {
         slots[start + elems - 1] = tc.native_i;
     }
 
+    /* Grows the array by count elements and returns the index in slots of
+     * the first of them, so the caller can write them in directly. */
+    public int reserve_native(ThreadContext tc, int count) {
+        set_size_internal(tc, elems + count);
+        return start + elems - count;
+    }
+
+    /* Pushes the first count of the values in one go. */
+    public void push_ints(ThreadContext tc, int[] values, int count) {
+        if (count == 0)
+            return;
+        int at = reserve_native(tc, count);
+        long[] slots = this.slots;
+        for (int i = 0; i < count; i++)
+            slots[at + i] = values[i];
+    }
+
     public void pop_native(ThreadContext tc) {
         if (elems < 1)
             throw ExceptionHandling.dieInternal(tc, "VMArray: Can't pop from an empty array");